@@ -0,0 +1,212 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.DynamicQueryApplication;
+import com.example.dynamicquery.config.BulkDataLoader;
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.dto.ProjectedRows;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times each stage of the dynamic query pipeline against an in-memory H2 seeded
+ * with {@code rows} employees. Run with {@code mvn -Pbenchmark verify}; results
+ * go to target/jmh-result.json.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g"})
+public class QueryPipelineBenchmark {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int MAPPED_ROWS = 1000;
+    private static final int EXPORT_ROWS = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class Pipeline {
+
+        @Param({"10000"})
+        public int rows;
+
+        @Param({"30"})
+        public int departments;
+
+        ConfigurableApplicationContext context;
+        GenericQueryService service;
+        ObjectMapper objectMapper;
+        TransactionTemplate readOnlyTx;
+
+        GenericRequest equalsRequest;
+        GenericRequest likeRequest;
+        GenericRequest betweenRequest;
+        GenericRequest inSubqueryRequest;
+        GenericRequest deepOffsetRequest;
+        GenericRequest countRequest;
+        GenericRequest exportRequest;
+
+        QueryPlan countPlan;
+        QueryPlan mappingPlan;
+        List<Tuple> tuples;
+        ProjectedRows page;
+
+        @Setup(Level.Trial)
+        public void start() {
+            context = new SpringApplicationBuilder(DynamicQueryApplication.class)
+                    .web(WebApplicationType.NONE)
+                    .properties(
+                            "dynamic.seed.demo-data=false",
+                            "spring.jpa.show-sql=false",
+                            "dynamic.query.result-cache.enabled=false",
+                            "spring.main.banner-mode=off",
+                            "logging.level.root=WARN")
+                    .run();
+            context.getBean(BulkDataLoader.class).seed(departments, rows);
+
+            service = context.getBean(GenericQueryService.class);
+            objectMapper = context.getBean(ObjectMapper.class);
+            readOnlyTx = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+            readOnlyTx.setReadOnly(true);
+
+            List<String> fields = Arrays.asList("id", "name", "salary", "joiningDate", "department.name");
+
+            equalsRequest = request(fields, "active", true);
+            likeRequest = request(fields, "name_like", "john");
+            betweenRequest = request(fields, "salary_between", Arrays.asList(40000, 60000));
+
+            Map<String, Object> sub = new HashMap<>();
+            sub.put("entity", "Department");
+            sub.put("field", "id");
+            sub.put("filters", Collections.singletonMap("name_like", "sales"));
+            inSubqueryRequest = request(fields, "department.id_inSubquery", sub);
+
+            deepOffsetRequest = request(fields, null, null);
+            deepOffsetRequest.setSort("id,asc");
+            deepOffsetRequest.setPage(Math.max(rows / PAGE_SIZE - 1, 0));
+
+            countRequest = request(fields, "active", true);
+            countRequest.setCountMode("exact");
+            countPlan = service.plan(countRequest, fields);
+
+            exportRequest = request(fields, "id_between", Arrays.asList(1, Math.min(rows, EXPORT_ROWS)));
+
+            // materialized once so mapping and serialization are timed without the database
+            GenericRequest mapping = request(fields, null, null);
+            mappingPlan = service.plan(mapping, fields);
+            EntityManager em = context.getBean(EntityManagerFactory.class).createEntityManager();
+            try {
+                TypedQuery<Tuple> q = mappingPlan.bind(em.createQuery(mappingPlan.dataQuery), mapping);
+                tuples = q.setMaxResults(MAPPED_ROWS).getResultList();
+            } finally {
+                em.close();
+            }
+            List<Object[]> values = new ArrayList<>(tuples.size());
+            for (Tuple t : tuples) {
+                values.add(mappingPlan.values(t));
+            }
+            page = new ProjectedRows(mappingPlan.schema, values, false);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            context.close();
+        }
+
+        private static GenericRequest request(List<String> fields, String filter, Object value) {
+            GenericRequest r = new GenericRequest();
+            r.setEntity("Employee");
+            r.setFields(fields);
+            r.setSize(PAGE_SIZE);
+            r.setCountMode("none");
+            if (filter != null) {
+                r.getFilters().put(filter, value);
+            }
+            return r;
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Criteria construction (buildPredicates / getPath), bypassing the plan cache
+    // ---------------------------------------------------------------------
+    @Benchmark
+    public QueryPlan compileEquals(Pipeline s) {
+        return s.readOnlyTx.execute(tx -> s.service.compilePlan(s.equalsRequest, s.equalsRequest.getFields()));
+    }
+
+    @Benchmark
+    public QueryPlan compileInSubquery(Pipeline s) {
+        return s.readOnlyTx.execute(tx -> s.service.compilePlan(s.inSubqueryRequest, s.inSubqueryRequest.getFields()));
+    }
+
+    // ---------------------------------------------------------------------
+    // Filtered pages (countMode=none, so only the page query is timed)
+    // ---------------------------------------------------------------------
+    @Benchmark
+    public Map<String, Object> fetchEquals(Pipeline s) {
+        return s.service.fetchData(s.equalsRequest);
+    }
+
+    @Benchmark
+    public Map<String, Object> fetchLike(Pipeline s) {
+        return s.service.fetchData(s.likeRequest);
+    }
+
+    @Benchmark
+    public Map<String, Object> fetchBetween(Pipeline s) {
+        return s.service.fetchData(s.betweenRequest);
+    }
+
+    @Benchmark
+    public Map<String, Object> fetchInSubquery(Pipeline s) {
+        return s.service.fetchData(s.inSubqueryRequest);
+    }
+
+    @Benchmark
+    public Map<String, Object> fetchDeepOffset(Pipeline s) {
+        return s.service.fetchData(s.deepOffsetRequest);
+    }
+
+    @Benchmark
+    public Long count(Pipeline s) {
+        return s.readOnlyTx.execute(tx -> s.service.runCount(s.countPlan, s.countRequest));
+    }
+
+    // ---------------------------------------------------------------------
+    // Row mapping and serialization of an already fetched page
+    // ---------------------------------------------------------------------
+    @Benchmark
+    public void rowMapping(Pipeline s, Blackhole bh) {
+        for (Tuple t : s.tuples) {
+            bh.consume(s.mappingPlan.values(t));
+        }
+    }
+
+    @Benchmark
+    public void jsonSerialization(Pipeline s) throws IOException {
+        s.objectMapper.writeValue(OutputStream.nullOutputStream(), s.page);
+    }
+
+    // ---------------------------------------------------------------------
+    // Streaming Excel export of up to EXPORT_ROWS rows
+    // ---------------------------------------------------------------------
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void excelExport(Pipeline s) throws IOException {
+        s.service.exportExcel(s.exportRequest, OutputStream.nullOutputStream());
+    }
+}
@@ -2,8 +2,10 @@ package com.example.dynamicquery;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class DynamicQueryApplication {
     public static void main(String[] args) {
         SpringApplication.run(DynamicQueryApplication.class, args);
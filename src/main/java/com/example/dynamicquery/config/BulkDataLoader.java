@@ -0,0 +1,260 @@
+package com.example.dynamicquery.config;
+
+import com.example.dynamicquery.service.EntityChangeTracker;
+import com.example.dynamicquery.service.SearchIndex;
+import com.example.dynamicquery.service.SnapshotEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Seeds large data sets (millions of rows) through JDBC batch inserts instead of
+ * saving entities one by one. Same value distribution as {@link DataLoader}, but
+ * deterministic: joining dates are relative to a fixed day, not today.
+ *
+ * <p>Ids are reserved from the entities' sequences up front, so rows can be
+ * inserted with explicit ids, in parallel slices, and without colliding with
+ * ids Hibernate hands out meanwhile. Also imports employees from a CSV file
+ * with H2's CSVREAD in a single INSERT ... SELECT.
+ *
+ * <p>Runs at startup when {@code dynamic.seed.bulk.employees} or
+ * {@code dynamic.seed.bulk.csv} is set.
+ */
+@Component
+public class BulkDataLoader implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkDataLoader.class);
+
+    public static final LocalDate BASE_DATE = LocalDate.of(2024, 1, 1);
+
+    private static final int BATCH_SIZE = 5000;
+
+    /** allocationSize of the entities' sequence generators. */
+    private static final int ALLOCATION_SIZE = 50;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private EntityChangeTracker changeTracker;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private SnapshotEngine snapshots;
+
+    @Value("${dynamic.seed.bulk.employees:0}")
+    private int bulkEmployees;
+
+    @Value("${dynamic.seed.bulk.departments:1000}")
+    private int bulkDepartments;
+
+    @Value("${dynamic.seed.bulk.skew:1.0}")
+    private double bulkSkew;
+
+    @Value("${dynamic.seed.bulk.threads:0}")
+    private int threads;
+
+    @Value("${dynamic.seed.bulk.csv:}")
+    private String bulkCsv;
+
+    private TransactionTemplate batchTx;
+
+    @PostConstruct
+    void init() {
+        batchTx = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (bulkEmployees > 0) {
+            seed(bulkDepartments, bulkEmployees, bulkSkew);
+        }
+        if (!bulkCsv.isEmpty()) {
+            importCsv(Paths.get(bulkCsv));
+        }
+    }
+
+    /**
+     * Inserts {@code departments} departments (the first three are HR, Engineering
+     * and Sales) and {@code employees} employees spread round-robin across them.
+     */
+    public void seed(int departments, int employees) {
+        seed(departments, employees, 0);
+    }
+
+    /**
+     * Like {@link #seed(int, int)}, but with {@code skew > 0} the department of
+     * each employee is drawn from a Zipf distribution with that exponent: the
+     * k-th department gets about 1/k^skew of the employees, so a few departments
+     * are huge and most are small. Slices of the employees are inserted in
+     * parallel, each on its own connection.
+     */
+    public void seed(int departments, int employees, double skew) {
+        long started = System.nanoTime();
+        String[] names = {"HR", "Engineering", "Sales"};
+        long firstDept = reserveIds("department_seq", departments);
+        List<Object[]> deptRows = new ArrayList<>(departments);
+        for (int i = 0; i < departments; i++) {
+            deptRows.add(new Object[]{firstDept + i, i < names.length ? names[i] : "Department " + (i + 1)});
+        }
+        batchTx.executeWithoutResult(s -> jdbcTemplate.batchUpdate("INSERT INTO department (id, name) VALUES (?, ?)", deptRows));
+
+        long firstEmp = reserveIds("employee_seq", employees);
+        double[] cumulative = skew > 0 ? zipfCumulative(departments, skew) : null;
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        int slices = Math.max(1, Math.min(parallelism, employees / BATCH_SIZE));
+        ExecutorService pool = Executors.newFixedThreadPool(slices);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int s = 0; s < slices; s++) {
+                int from = (int) ((long) employees * s / slices) + 1;
+                int to = (int) ((long) employees * (s + 1) / slices);
+                long seed = 12345 + s;
+                done.add(pool.submit(() -> insertEmployees(from, to, firstEmp - 1, firstDept, departments,
+                        cumulative, new Random(seed))));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Bulk load failed: " + e.getMessage(), e);
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Bulk loaded {} departments and {} employees (skew {}) in {} ms",
+                departments, employees, skew, (System.nanoTime() - started) / 1_000_000);
+
+        loaded();
+    }
+
+    /** Employees {@code from..to} (1-based), ids offset by {@code idBase}. */
+    private void insertEmployees(int from, int to, long idBase, long firstDept, int departments,
+                                 double[] cumulative, Random rand) {
+        List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = from; i <= to; i++) {
+            String name = (i % 5 == 0) ? "John " + i : "Employee " + i;
+            double salary = 25000 + rand.nextInt(90000);
+            LocalDate jd = BASE_DATE.minusDays(rand.nextInt(2000));
+            int deptIndex = cumulative != null ? zipf(cumulative, rand) : i % departments;
+            boolean active = (i % 2 == 0);
+            batch.add(new Object[]{idBase + i, name, salary, Date.valueOf(jd), firstDept + deptIndex, active});
+            if (batch.size() == BATCH_SIZE) {
+                insertEmployees(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            insertEmployees(batch);
+        }
+    }
+
+    private void insertEmployees(List<Object[]> rows) {
+        // one commit per batch; in auto-commit mode H2 commits every row of it
+        batchTx.executeWithoutResult(s -> jdbcTemplate.batchUpdate(
+                "INSERT INTO employee (id, name, salary, joining_date, department_id, active) VALUES (?, ?, ?, ?, ?, ?)",
+                rows));
+    }
+
+    /**
+     * Imports employees from a CSV file with a header line and the columns
+     * name, salary, joining_date (yyyy-MM-dd), department (a name; created when
+     * missing) and active. The file is read by the database itself.
+     */
+    public void importCsv(Path file) {
+        if (!Files.isReadable(file)) {
+            throw new IllegalArgumentException("CSV file not readable: " + file);
+        }
+        long started = System.nanoTime();
+        // table functions are evaluated while the statement is prepared: no parameters
+        String csv = "CSVREAD('" + file.toAbsolutePath().toString().replace("'", "''") + "', NULL, 'charset=UTF-8')";
+
+        Long newDepts = jdbcTemplate.queryForObject(
+                "SELECT COUNT(DISTINCT department) FROM " + csv
+                        + " WHERE department NOT IN (SELECT name FROM department)", Long.class);
+        if (newDepts != null && newDepts > 0) {
+            long firstDept = reserveIds("department_seq", newDepts);
+            jdbcTemplate.update("INSERT INTO department (id, name) SELECT ? + ROWNUM() - 1, department FROM ("
+                    + "SELECT DISTINCT department FROM " + csv
+                    + " WHERE department NOT IN (SELECT name FROM department) ORDER BY department)", firstDept);
+        }
+
+        Long rows = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + csv, Long.class);
+        long firstEmp = reserveIds("employee_seq", rows != null ? rows : 0);
+        int inserted = jdbcTemplate.update(
+                "INSERT INTO employee (id, name, salary, joining_date, department_id, active) "
+                        + "SELECT ? + ROWNUM() - 1, c.name, CAST(c.salary AS DOUBLE PRECISION), CAST(c.joining_date AS DATE), "
+                        + "(SELECT MIN(d.id) FROM department d WHERE d.name = c.department), CAST(c.active AS BOOLEAN) "
+                        + "FROM " + csv + " c", firstEmp);
+        log.info("Imported {} employees ({} new departments) from {} in {} ms",
+                inserted, newDepts, file, (System.nanoTime() - started) / 1_000_000);
+
+        loaded();
+    }
+
+    /**
+     * Takes {@code count} consecutive ids from a sequence: they start past every
+     * block Hibernate has already allocated, and the sequence is moved on past
+     * them so later allocations (and later loads) start after them too.
+     */
+    private synchronized long reserveIds(String sequence, long count) {
+        Long current = jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR " + sequence, Long.class);
+        long first = current + 1;
+        // next value lies a whole allocation block past the reserved ids
+        jdbcTemplate.execute("ALTER SEQUENCE " + sequence + " RESTART WITH " + (first + count + ALLOCATION_SIZE));
+        return first;
+    }
+
+    /** Running totals of 1/k^skew for k = 1..n. */
+    private static double[] zipfCumulative(int n, double skew) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int k = 1; k <= n; k++) {
+            sum += 1.0 / Math.pow(k, skew);
+            cumulative[k - 1] = sum;
+        }
+        return cumulative;
+    }
+
+    private static int zipf(double[] cumulative, Random rand) {
+        double u = rand.nextDouble() * cumulative[cumulative.length - 1];
+        int i = Arrays.binarySearch(cumulative, u);
+        return i >= 0 ? i : Math.min(-i - 1, cumulative.length - 1);
+    }
+
+    private void loaded() {
+        // plain JDBC bypasses the entity listeners
+        searchIndex.rebuild("Department");
+        searchIndex.rebuild("Employee");
+        snapshots.reload("Department");
+        snapshots.reload("Employee");
+        changeTracker.changed("Department");
+        changeTracker.changed("Employee");
+    }
+}
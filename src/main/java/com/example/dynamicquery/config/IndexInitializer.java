@@ -0,0 +1,125 @@
+package com.example.dynamicquery.config;
+
+import com.example.dynamicquery.model.Filterable;
+import com.example.dynamicquery.service.EntityRegistry;
+import com.example.dynamicquery.service.EntityRegistry.EntityInfo;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Index;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.Table;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the indexes the dynamic queries rely on, independent of ddl-auto:
+ * one per {@link Filterable} column ({@code (column, id)} when sortable), one per
+ * many-to-one join column, and the composite indexes declared in
+ * {@code @Table(indexes = ...)}. Runs before the application takes requests;
+ * existing indexes are left alone.
+ * <p>
+ * The lower-case column named by {@code @Filterable(lowerCase = ...)} is indexed
+ * as well, so {@code _ieq} filters comparing against it are index lookups.
+ */
+@Component
+public class IndexInitializer {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexInitializer.class);
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private EntityRegistry registry;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${dynamic.query.auto-index:true}")
+    private boolean enabled;
+
+    @PostConstruct
+    void createIndexes() {
+        if (!enabled) return;
+        SessionFactoryImplementor sf = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        for (EntityInfo info : registry.entities()) {
+            AbstractEntityPersister persister =
+                    (AbstractEntityPersister) sf.getMetamodel().entityPersister(info.getJavaType());
+            String table = persister.getTableName();
+            String id = persister.getIdentifierColumnNames()[0];
+
+            // index name -> column list
+            Map<String, String> indexes = new LinkedHashMap<>();
+            for (Field f : info.getJavaType().getDeclaredFields()) {
+                Filterable filterable = f.getAnnotation(Filterable.class);
+                if (filterable == null) continue;
+                String column = persister.getPropertyColumnNames(f.getName())[0];
+                if (filterable.sortable()) {
+                    // serves filters on the column as well as ORDER BY column, id
+                    indexes.put(indexName(table, column + "_" + id), column + ", " + id);
+                } else {
+                    indexes.put(indexName(table, column), column);
+                }
+                if (!filterable.lowerCase().isEmpty()) {
+                    String lower = persister.getPropertyColumnNames(filterable.lowerCase())[0];
+                    indexes.put(indexName(table, lower), lower);
+                }
+            }
+            EntityType<?> type = sf.getMetamodel().entity(info.getJavaType());
+            for (Attribute<?, ?> a : type.getAttributes()) {
+                if (a.getPersistentAttributeType() == Attribute.PersistentAttributeType.MANY_TO_ONE
+                        || a.getPersistentAttributeType() == Attribute.PersistentAttributeType.ONE_TO_ONE) {
+                    String[] columns = persister.getPropertyColumnNames(a.getName());
+                    if (columns.length > 0) {
+                        indexes.put(indexName(table, columns[0]), String.join(", ", columns));
+                    }
+                }
+            }
+            Table t = info.getJavaType().getAnnotation(Table.class);
+            if (t != null) {
+                for (Index idx : t.indexes()) {
+                    indexes.put(idx.name(), physicalColumns(persister, idx.columnList()));
+                }
+            }
+
+            indexes.forEach((name, columns) -> {
+                jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + name + " ON " + table + " (" + columns + ")");
+                log.info("Index {} on {} ({})", name, table, columns);
+            });
+        }
+    }
+
+    /** columnList entries are logical names (attribute or explicit column names), like Hibernate reads them. */
+    private static String physicalColumns(AbstractEntityPersister persister, String columnList) {
+        List<String> columns = new ArrayList<>();
+        for (String logical : columnList.split(",")) {
+            String name = logical.trim();
+            String[] mapped = null;
+            try {
+                mapped = persister.getPropertyColumnNames(name);
+            } catch (RuntimeException notAProperty) {
+                // already a column name, e.g. a @JoinColumn name
+            }
+            columns.add(mapped != null && mapped.length == 1 ? mapped[0] : name);
+        }
+        return String.join(", ", columns);
+    }
+
+    private static String indexName(String table, String column) {
+        return "idx_" + table + "_" + column;
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.dynamicquery.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.task.TaskExecutorBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for query work that runs beside the request thread (page and count
+ * queries in parallel). Uses one virtual thread per task when asked to and the
+ * JVM supports it (JDK 21+), otherwise a bounded pool of platform threads that
+ * falls back to running on the caller when saturated.
+ */
+@Configuration
+public class QueryExecutorConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryExecutorConfig.class);
+
+    @Value("${dynamic.query.executor.virtual-threads:false}")
+    private boolean virtualThreads;
+
+    @Value("${dynamic.query.executor.pool-size:16}")
+    private int poolSize;
+
+    @Value("${dynamic.query.executor.queue-capacity:256}")
+    private int queueCapacity;
+
+    @Value("${dynamic.query.batch.parallelism:4}")
+    private int batchParallelism;
+
+    @Value("${dynamic.export.jobs.workers:2}")
+    private int exportWorkers;
+
+    @Value("${dynamic.export.jobs.queue-capacity:20}")
+    private int exportQueueCapacity;
+
+    @Value("${dynamic.export.chunk-threads:4}")
+    private int exportChunkThreads;
+
+    @Value("${dynamic.snapshot.parallelism:0}")
+    private int snapshotParallelism;
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService queryExecutor() {
+        if (virtualThreads) {
+            try {
+                // looked up reflectively so the build can keep targeting 17
+                ExecutorService vt = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Query executor: virtual threads");
+                return vt;
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads requested but not available on Java {}; using a platform pool",
+                        System.getProperty("java.version"));
+            }
+        }
+        AtomicInteger n = new AtomicInteger();
+        log.info("Query executor: {} platform threads", poolSize);
+        return new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "query-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Runs the items of a /dynamic/batch call. Kept apart from the query executor
+     * so batch items waiting on their count queries can never starve those counts.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService batchExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return new ThreadPoolExecutor(batchParallelism, batchParallelism, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "batch-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Runs export jobs. Bounded on both ends: once the queue is full further
+     * submissions are rejected (503) instead of piling up or running on the
+     * request thread.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService exportJobExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return new ThreadPoolExecutor(exportWorkers, exportWorkers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(exportQueueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "export-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /** Reads the key-range chunks of large export jobs ahead of the job thread writing them. */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService exportChunkExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return new ThreadPoolExecutor(exportChunkThreads, exportChunkThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "export-chunk-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Runs Spring MVC async work: the StreamingResponseBody writes of /dynamic/stream
+     * and /dynamic/export. Boot only creates its own applicationTaskExecutor when no
+     * other Executor bean exists, so without this one MVC would fall back to an
+     * unbounded SimpleAsyncTaskExecutor (a new thread per response). Sized by the
+     * spring.task.execution.* properties; when saturated the write runs on the
+     * request thread rather than being rejected after admission.
+     */
+    @Bean(name = {"applicationTaskExecutor", "taskExecutor"})
+    public ThreadPoolTaskExecutor applicationTaskExecutor(TaskExecutorBuilder builder) {
+        ThreadPoolTaskExecutor executor = builder.build();
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /** Filters the slices of large columnar snapshots; 0 = one worker per core. */
+    @Bean(destroyMethod = "shutdown")
+    public ForkJoinPool snapshotPool() {
+        return new ForkJoinPool(snapshotParallelism > 0 ? snapshotParallelism : Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.dynamicquery.config;
+
+import com.zaxxer.hikari.SQLExceptionOverride;
+
+import java.sql.SQLException;
+
+/**
+ * Keeps a pooled connection when only its statement was cancelled by the query
+ * timeout (SQLSTATE 57014). Hikari would otherwise mark the connection broken and
+ * close it, and the rollback that follows fails and hides the timeout. Registered
+ * through {@code spring.datasource.hikari.exception-override-class-name}.
+ */
+public class StatementTimeoutExceptionOverride implements SQLExceptionOverride {
+
+    private static final String QUERY_CANCELED = "57014";
+
+    @java.lang.Override
+    public Override adjudicate(SQLException e) {
+        return QUERY_CANCELED.equals(e.getSQLState()) ? Override.DO_NOT_EVICT : Override.CONTINUE_EVICT;
+    }
+}
@@ -1,13 +1,34 @@
 package com.example.dynamicquery.controller;
 
 import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.service.BatchQueryService;
+import com.example.dynamicquery.service.AdmissionControl;
+import com.example.dynamicquery.service.CountCache;
+import com.example.dynamicquery.service.ExportFormat;
+import com.example.dynamicquery.service.ExportJobService;
 import com.example.dynamicquery.service.GenericQueryService;
+import com.example.dynamicquery.service.QueryMetrics;
+import com.example.dynamicquery.service.QueryPlanCache;
+import com.example.dynamicquery.service.ResultCache;
+import com.example.dynamicquery.service.SnapshotEngine;
+import com.example.dynamicquery.service.SubqueryCache;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.io.*;
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -16,20 +37,208 @@ public class DynamicQueryController {
     @Autowired
     private GenericQueryService genericQueryService;
 
+    @Autowired
+    private BatchQueryService batchQueryService;
+
+    @Autowired
+    private QueryPlanCache queryPlanCache;
+
+    @Autowired
+    private CountCache countCache;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private SubqueryCache subqueryCache;
+
+    @Autowired
+    private SnapshotEngine snapshotEngine;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private ExportJobService exportJobService;
+
+    @Autowired
+    private QueryMetrics queryMetrics;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${dynamic.export.download.gzip:true}")
+    private boolean downloadGzip;
+
+    @Value("${dynamic.export.download.sendfile-min-bytes:49152}")
+    private long sendfileMinBytes;
+
+    private FileDownload fileDownload;
+
+    @PostConstruct
+    void init() {
+        fileDownload = new FileDownload(downloadGzip, sendfileMinBytes);
+    }
+
+    /**
+     * Fetch is a read, so it is conditional like a GET: the response carries a weak
+     * ETag, and a request whose If-None-Match lists the current tag gets 304 without
+     * a query being run.
+     */
     @PostMapping("/fetch")
-    public Map<String, Object> fetch(@RequestBody GenericRequest request) throws Exception {
-        return genericQueryService.fetchData(request);
+    public ResponseEntity<byte[]> fetch(@RequestBody GenericRequest request,
+                                        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch)
+            throws JsonProcessingException {
+        if (!request.isExport()) {
+            admissionControl.checkPageSize(request);
+        }
+        String etag = genericQueryService.etag(request);
+        if (etag != null && matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        Map<String, Object> result = genericQueryService.fetchData(request);
+        // serialized here rather than by the message converter so the time shows up per request shape
+        long started = System.nanoTime();
+        byte[] body = objectMapper.writeValueAsBytes(result);
+        queryMetrics.recordSerialization(request, System.nanoTime() - started);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (etag != null) {
+            response.eTag(etag);
+        }
+        return response.body(body);
     }
 
-    @GetMapping("/download")
-    public ResponseEntity<InputStreamResource> download(@RequestParam String filePath) throws IOException {
-        File f = new File(filePath);
-        if (!f.exists()) return ResponseEntity.notFound().build();
-        InputStreamResource resource = new InputStreamResource(new FileInputStream(f));
+    /** Weak comparison, as If-None-Match requires: W/ prefixes are ignored. */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.substring(2);
+        for (String tag : ifNoneMatch.split(",")) {
+            String t = tag.trim();
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals("*") || t.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @PostMapping("/batch")
+    public List<Map<String, Object>> batch(@RequestBody List<GenericRequest> requests) {
+        return batchQueryService.execute(requests);
+    }
+
+    @PostMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(@RequestBody GenericRequest request) {
+        // resolve columns up front so a bad request fails before the response is committed
+        genericQueryService.exportFields(request);
+        // admitted here, so a rejection is still a plain 429; the slot is held until the body is written
+        AdmissionControl.Permit permit = admissionControl.admit(request, true);
+        String fileName = (request.getEntity() != null ? request.getEntity() : "export") + "_export.xlsx";
+        StreamingResponseBody body = out -> {
+            try (permit) {
+                genericQueryService.exportExcel(request, out);
+            }
+        };
         return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + f.getName() + "\"")
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
                 .contentType(MediaType.parseMediaType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"))
-                .contentLength(f.length())
-                .body(resource);
+                .body(body);
+    }
+
+    @PostMapping("/export/jobs")
+    public ResponseEntity<Map<String, Object>> submitExport(@RequestBody GenericRequest request) {
+        Map<String, Object> job = exportJobService.submit(request);
+        return ResponseEntity.accepted()
+                .header(HttpHeaders.LOCATION, "/dynamic/export/jobs/" + job.get("jobId"))
+                .body(job);
+    }
+
+    @GetMapping("/export/jobs")
+    public List<Map<String, Object>> exportJobs() {
+        return exportJobService.list();
+    }
+
+    @GetMapping("/export/jobs/{id}")
+    public ResponseEntity<Map<String, Object>> exportJob(@PathVariable String id) {
+        Map<String, Object> job = exportJobService.status(id);
+        return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+    }
+
+    @DeleteMapping("/export/jobs/{id}")
+    public ResponseEntity<Void> deleteExportJob(@PathVariable String id) {
+        return exportJobService.delete(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    @PostMapping("/stream")
+    public ResponseEntity<StreamingResponseBody> stream(@RequestBody GenericRequest request,
+                                                        @RequestParam(defaultValue = "ndjson") String format) {
+        genericQueryService.exportFields(request);
+        AdmissionControl.Permit permit = admissionControl.admit(request, true);
+        boolean ndjson = !"json".equalsIgnoreCase(format);
+        StreamingResponseBody body = out -> {
+            try (permit) {
+                genericQueryService.streamJson(request, out, ndjson);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(ndjson ? MediaType.parseMediaType("application/x-ndjson") : MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    @GetMapping("/export/jobs/{id}/file")
+    public void exportJobFile(@PathVariable String id,
+                              HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        Map<String, Object> job = exportJobService.status(id);
+        if (job == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (!"DONE".equals(String.valueOf(job.get("status")))) {
+            response.sendError(HttpServletResponse.SC_CONFLICT, "Export job is " + job.get("status"));
+            return;
+        }
+        serveExport(Paths.get((String) job.get("file")), request, response);
+    }
+
+    /** Serves a file from the export directory; {@code filePath} may be its name or its full path. */
+    @GetMapping("/download")
+    public void download(@RequestParam String filePath,
+                         HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        Path file = exportJobService.exportFile(filePath);
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Only export files can be downloaded");
+            return;
+        }
+        serveExport(file, request, response);
+    }
+
+    private void serveExport(Path file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        ExportFormat format = ExportFormat.forFile(file.getFileName().toString());
+        fileDownload.serve(file,
+                format != null ? format.getContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                format != null && format.isText(),
+                request, response);
+    }
+
+    @GetMapping("/stats")
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("planCache", queryPlanCache.stats());
+        stats.put("countCache", countCache.stats());
+        stats.put("resultCache", resultCache.stats());
+        stats.put("subqueryCache", subqueryCache.stats());
+        stats.put("snapshots", snapshotEngine.stats());
+        stats.put("admission", admissionControl.stats());
+        return stats;
     }
 }
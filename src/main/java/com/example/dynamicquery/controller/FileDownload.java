@@ -0,0 +1,197 @@
+package com.example.dynamicquery.controller;
+
+import org.springframework.http.HttpHeaders;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends a file without copying it through the heap: Tomcat's sendfile when the
+ * connector offers it, otherwise {@link FileChannel#transferTo}. Handles a single
+ * byte range ({@code Range}/{@code If-Range}, 206/416), conditional requests on a
+ * strong ETag built from size and modification time (304), and gzips text files
+ * on the fly for clients that accept it (whole-file responses only).
+ */
+final class FileDownload {
+
+    // request attributes understood by Tomcat's NIO connector (org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final boolean gzip;
+    private final long sendfileMinBytes;
+
+    FileDownload(boolean gzip, long sendfileMinBytes) {
+        this.gzip = gzip;
+        this.sendfileMinBytes = sendfileMinBytes;
+    }
+
+    void serve(Path file,
+               String contentType,
+               boolean text,
+               HttpServletRequest request,
+               HttpServletResponse response) throws IOException {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+        boolean compress = gzip && text && acceptsGzip(request);
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, compress ? gzipTag(etag) : etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, modified);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"" + file.getFileName() + "\"");
+        if (gzip && text) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+
+        if (matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(contentType);
+
+        long[] range = range(request, etag, size);
+        if (range != null && range.length == 0) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+
+        if (range == null && compress) {
+            // length unknown up front: chunked
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            if (!head) {
+                try (OutputStream out = new GZIPOutputStream(response.getOutputStream(), 64 * 1024)) {
+                    Files.copy(file, out);
+                }
+            }
+            return;
+        }
+
+        long start = range != null ? range[0] : 0;
+        long length = range != null ? range[1] - range[0] + 1 : size;
+        if (range != null) {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + size);
+        }
+        response.setContentLengthLong(length);
+        if (head || length == 0) {
+            return;
+        }
+
+        if (length >= sendfileMinBytes && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // the connector writes the file straight from the page cache once this request returns
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + length);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = length;
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, out);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+
+    /**
+     * The requested byte range as {first, last} (inclusive); null to send the
+     * whole file (no Range, a stale If-Range, several ranges or a header we don't
+     * parse); an empty array when the range lies beyond the end of the file.
+     */
+    private static long[] range(HttpServletRequest request, String etag, long size) {
+        String header = request.getHeader(HttpHeaders.RANGE);
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag)) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                // suffix range: the last n bytes
+                long n = Long.parseLong(spec.substring(1));
+                if (n == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, size - n);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                if (first >= size) {
+                    return new long[0];
+                }
+                last = dash == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+                if (last < first) {
+                    return null;
+                }
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String t = tag.trim();
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals("*") || t.equals(etag) || t.equals(gzipTag(etag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The compressed representation has different bytes, so it gets its own tag. */
+    private static String gzipTag(String etag) {
+        return etag.substring(0, etag.length() - 1) + "-gzip\"";
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String accept = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            String c = coding.trim();
+            if (c.startsWith("gzip") && !c.replace(" ", "").endsWith("q=0")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
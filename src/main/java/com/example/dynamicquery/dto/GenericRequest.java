@@ -12,6 +12,17 @@ public class GenericRequest {
     private List<SortSpec> sorts;   // multi-column sort
     private boolean distinct;
     private boolean export = false;
+    private String exportFormat = "xlsx";   // export jobs: "xlsx", "csv", "json" (NDJSON) or "columnar"
+    private String pagination = "offset";  // "offset" or "keyset"
+    private String cursor;                 // keyset continuation token from the previous page
+    private String countMode = "exact";    // "exact", "none" (hasNext only) or "cached"
+    private String format = "objects";     // row layout: "objects" or "columnar"
+    private List<String> groupBy;           // grouping columns; with aggregates replaces "fields"
+    private List<AggregateSpec> aggregates; // count, sum, avg, min, max, countDistinct
+    private Map<String, Object> having = new HashMap<>();  // conditions on aggregate aliases
+    private boolean explain;                // add the database's plan for each statement to the response
+    private List<String> fetch;             // to-one associations whose columns are added to the rows
+    private String fetchMode = "join";      // "join" (same query) or "batch" (one IN-list query per association)
 
     public String getEntity() { return entity; }
     public void setEntity(String entity) { this.entity = entity; }
@@ -40,14 +51,83 @@ public class GenericRequest {
     public boolean isExport() { return export; }
     public void setExport(boolean export) { this.export = export; }
 
+    public String getExportFormat() { return exportFormat; }
+    public void setExportFormat(String exportFormat) { this.exportFormat = exportFormat; }
+
+    public String getPagination() { return pagination; }
+    public void setPagination(String pagination) { this.pagination = pagination; }
+
+    public boolean isKeyset() { return "keyset".equalsIgnoreCase(pagination); }
+
+    public String getCursor() { return cursor; }
+    public void setCursor(String cursor) { this.cursor = cursor; }
+
+    public String getCountMode() { return countMode; }
+    public void setCountMode(String countMode) { this.countMode = countMode; }
+
+    public String getFormat() { return format; }
+    public void setFormat(String format) { this.format = format; }
+
+    public boolean isColumnar() { return "columnar".equalsIgnoreCase(format); }
+
+    public List<String> getGroupBy() { return groupBy; }
+    public void setGroupBy(List<String> groupBy) { this.groupBy = groupBy; }
+
+    public List<AggregateSpec> getAggregates() { return aggregates; }
+    public void setAggregates(List<AggregateSpec> aggregates) { this.aggregates = aggregates; }
+
+    public Map<String, Object> getHaving() { return having; }
+    public void setHaving(Map<String, Object> having) { this.having = having; }
+
+    public boolean isExplain() { return explain; }
+    public void setExplain(boolean explain) { this.explain = explain; }
+
+    public List<String> getFetch() { return fetch; }
+    public void setFetch(List<String> fetch) { this.fetch = fetch; }
+
+    public String getFetchMode() { return fetchMode; }
+    public void setFetchMode(String fetchMode) { this.fetchMode = fetchMode; }
+
+    public boolean isBatchFetch() { return "batch".equalsIgnoreCase(fetchMode); }
+
+    public boolean isAggregate() {
+        return (groupBy != null && !groupBy.isEmpty()) || (aggregates != null && !aggregates.isEmpty());
+    }
+
     public static class SortSpec {
         private String field;
         private String direction;
 
+        public SortSpec() {}
+        public SortSpec(String field, String direction) { this.field = field; this.direction = direction; }
+
         public String getField() { return field; }
         public void setField(String field) { this.field = field; }
 
         public String getDirection() { return direction; }
         public void setDirection(String direction) { this.direction = direction; }
     }
+
+    public static class AggregateSpec {
+        private String function;   // count, sum, avg, min, max, countDistinct
+        private String field;      // dotted path; optional for count (counts rows)
+        private String alias;      // output column; defaults to function_field
+
+        public AggregateSpec() {}
+        public AggregateSpec(String function, String field, String alias) {
+            this.function = function; this.field = field; this.alias = alias;
+        }
+
+        public String getFunction() { return function; }
+        public void setFunction(String function) { this.function = function; }
+
+        public String getField() { return field; }
+        public void setField(String field) { this.field = field; }
+
+        public String getAlias() {
+            if (alias != null && !alias.isEmpty()) return alias;
+            return field == null ? function : function + "_" + field.replace('.', '_');
+        }
+        public void setAlias(String alias) { this.alias = alias; }
+    }
 }
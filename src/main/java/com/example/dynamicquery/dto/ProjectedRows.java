@@ -0,0 +1,33 @@
+package com.example.dynamicquery.dto;
+
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Query result rows as one {@link RowSchema} plus an {@code Object[]} of values
+ * per row. Serialized either as an array of objects (the default) or, when
+ * columnar, as {@code {"columns":[...],"rows":[[...],...]}}.
+ */
+@JsonSerialize(using = ProjectedRowsSerializer.class)
+public final class ProjectedRows {
+
+    private final RowSchema schema;
+    private final List<Object[]> rows;
+    private final boolean columnar;
+
+    public ProjectedRows(RowSchema schema, List<Object[]> rows, boolean columnar) {
+        this.schema = schema;
+        this.rows = Collections.unmodifiableList(rows);
+        this.columnar = columnar;
+    }
+
+    public RowSchema getSchema() { return schema; }
+
+    public List<Object[]> getRows() { return rows; }
+
+    public boolean isColumnar() { return columnar; }
+
+    public int size() { return rows.size(); }
+}
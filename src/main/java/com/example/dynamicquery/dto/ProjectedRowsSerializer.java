@@ -0,0 +1,76 @@
+package com.example.dynamicquery.dto;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * Writes {@link ProjectedRows} straight from the value arrays, with the common
+ * scalar types written directly and everything else (dates, entities) handed
+ * to the configured Jackson serializers.
+ */
+public class ProjectedRowsSerializer extends StdSerializer<ProjectedRows> {
+
+    public ProjectedRowsSerializer() {
+        super(ProjectedRows.class);
+    }
+
+    @Override
+    public void serialize(ProjectedRows value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        RowSchema schema = value.getSchema();
+        int width = schema.size();
+
+        if (value.isColumnar()) {
+            gen.writeStartObject();
+            gen.writeFieldName("columns");
+            gen.writeStartArray();
+            for (String c : schema.getColumns()) {
+                gen.writeString(c);
+            }
+            gen.writeEndArray();
+            gen.writeFieldName("rows");
+            gen.writeStartArray();
+            for (Object[] row : value.getRows()) {
+                gen.writeStartArray();
+                for (int i = 0; i < width; i++) {
+                    writeValue(row[i], gen, provider);
+                }
+                gen.writeEndArray();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+            return;
+        }
+
+        gen.writeStartArray();
+        for (Object[] row : value.getRows()) {
+            gen.writeStartObject();
+            for (int i = 0; i < width; i++) {
+                gen.writeFieldName(schema.encodedName(i));
+                writeValue(row[i], gen, provider);
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+    }
+
+    private static void writeValue(Object v, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        if (v == null) {
+            gen.writeNull();
+        } else if (v instanceof String) {
+            gen.writeString((String) v);
+        } else if (v instanceof Long) {
+            gen.writeNumber((Long) v);
+        } else if (v instanceof Integer) {
+            gen.writeNumber((Integer) v);
+        } else if (v instanceof Double) {
+            gen.writeNumber((Double) v);
+        } else if (v instanceof Boolean) {
+            gen.writeBoolean((Boolean) v);
+        } else {
+            provider.defaultSerializeValue(v, gen);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.dynamicquery.dto;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable column list shared by every row of a result (and by every result of
+ * the same compiled query). Column names are pre-encoded for JSON output.
+ */
+public final class RowSchema {
+
+    private final List<String> columns;
+    private final SerializableString[] encoded;
+
+    public RowSchema(List<String> columns) {
+        this.columns = Collections.unmodifiableList(columns);
+        this.encoded = new SerializableString[columns.size()];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = new SerializedString(columns.get(i));
+        }
+    }
+
+    public List<String> getColumns() { return columns; }
+
+    public int size() { return encoded.length; }
+
+    public int indexOf(String column) { return columns.indexOf(column); }
+
+    SerializableString encodedName(int i) { return encoded[i]; }
+}
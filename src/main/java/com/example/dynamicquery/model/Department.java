@@ -1,14 +1,24 @@
 package com.example.dynamicquery.model;
 
+import com.example.dynamicquery.service.EntityChangeListener;
+
 import javax.persistence.*;
 
 @Entity
+@EntityListeners(EntityChangeListener.class)
 @Table(name = "department")
 public class Department {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "department_seq")
+    @SequenceGenerator(name = "department_seq", sequenceName = "department_seq", allocationSize = 50)
     private Long id;
+    @Filterable(sortable = true, lowerCase = "nameLower")
+    @Searchable
     private String name;
+    /** LOWER(name), computed by the database (never written, not refreshed after writes). */
+    @Column(name = "name_lower", insertable = false, updatable = false,
+            columnDefinition = "varchar(255) generated always as (lower(name))")
+    private String nameLower;
     public Department() {}
     public Department(String name) { this.name = name; }
     public Long getId() { return id; } public void setId(Long id) { this.id = id; }
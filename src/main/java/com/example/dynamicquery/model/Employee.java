@@ -1,16 +1,31 @@
 package com.example.dynamicquery.model;
 
+import com.example.dynamicquery.service.EntityChangeListener;
+
 import javax.persistence.*;
 import java.time.LocalDate;
 
 @Entity
-@Table(name = "employee")
+@EntityListeners(EntityChangeListener.class)
+@Table(name = "employee", indexes = {
+        @Index(name = "idx_employee_department_salary", columnList = "department_id, salary"),
+        @Index(name = "idx_employee_active_joining_date", columnList = "active, joiningDate")
+})
 public class Employee {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "employee_seq")
+    @SequenceGenerator(name = "employee_seq", sequenceName = "employee_seq", allocationSize = 50)
     private Long id;
+    @Filterable(sortable = true, lowerCase = "nameLower")
+    @Searchable
     private String name;
+    /** LOWER(name), computed by the database (never written, not refreshed after writes). */
+    @Column(name = "name_lower", insertable = false, updatable = false,
+            columnDefinition = "varchar(255) generated always as (lower(name))")
+    private String nameLower;
+    @Filterable(sortable = true)
     private Double salary;
+    @Filterable(sortable = true)
     private LocalDate joiningDate;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -0,0 +1,29 @@
+package com.example.dynamicquery.model;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an entity field that requests commonly filter (or, with
+ * {@code sortable}, sort) on. A B-tree index is created on its column at startup
+ * (see {@code IndexInitializer}); for a sortable field the index is
+ * {@code (column, id)}, the order pages and keyset cursors read in, so H2 can
+ * return the page straight from the index instead of sorting. Composite indexes
+ * for other common sort orders are declared with {@code @Table(indexes = ...)}
+ * on the entity.
+ * <p>
+ * {@code lowerCase} names a read-only property of the same entity mapped to a
+ * column holding {@code LOWER(column)}; it is indexed too, and {@code _ieq}
+ * filters on the field compare against it instead of {@code lower(column)}. That
+ * property is left out of default projections.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Filterable {
+
+    boolean sortable() default false;
+
+    String lowerCase() default "";
+}
@@ -0,0 +1,16 @@
+package com.example.dynamicquery.model;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a String field as full-text indexed, so requests can filter it with
+ * {@code <field>_search} and sort by relevance ({@code _rank}). The index is kept
+ * in memory by {@code SearchIndex} and follows writes through the entity listener.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Searchable {
+}
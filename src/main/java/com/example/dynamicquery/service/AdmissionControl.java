@@ -0,0 +1,276 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.service.EntityRegistry.EntityInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a query may run now. Each request gets a cost estimated from
+ * its shape alone (nothing is compiled or executed):
+ * <ul>
+ *   <li>1 for the page query, +1 when a count query runs beside it</li>
+ *   <li>+2 per association joined for a field, filter, sort or group</li>
+ *   <li>+3 per {@code _like} (a scan: the leading wildcard defeats indexes)</li>
+ *   <li>+5 per {@code _inSubquery}, plus the cost of the subquery itself</li>
+ *   <li>+1 per started 100 rows of page size, +2 for distinct, +2 for groupBy/aggregates</li>
+ *   <li>+20 for reads of the whole result (/stream, /export)</li>
+ * </ul>
+ * Requests over {@code max-cost} are refused (400), as are client pages over
+ * {@code max-page-size} (see {@link #checkPageSize}). The rest need a slot from the global limit and from their entity's limit;
+ * requests costing at least {@code heavy-cost} also need one of the few heavy slots,
+ * so expensive queries can never take every slot from normal traffic. A request
+ * waits at most {@code max-wait-ms} for its slots, and only {@code queue-size}
+ * requests may wait at once; beyond that it is rejected with 429 right away.
+ */
+@Component
+public class AdmissionControl {
+
+    /** Held while a query runs; closing it frees the slots (idempotent). */
+    public static final class Permit implements AutoCloseable {
+        private final Semaphore[] held;
+        private boolean closed;
+
+        private Permit(Semaphore[] held) {
+            this.held = held;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) return;
+            closed = true;
+            for (int i = held.length - 1; i >= 0; i--) {
+                held[i].release();
+            }
+        }
+    }
+
+    private static final Permit NONE = new Permit(new Semaphore[0]);
+
+    @Autowired
+    private EntityRegistry registry;
+
+    @Value("${dynamic.query.admission.enabled:true}")
+    private boolean enabled;
+
+    @Value("${dynamic.query.admission.max-concurrent:16}")
+    private int maxConcurrent;
+
+    @Value("${dynamic.query.admission.max-concurrent-per-entity:8}")
+    private int maxPerEntity;
+
+    @Value("${dynamic.query.admission.max-heavy:2}")
+    private int maxHeavy;
+
+    @Value("${dynamic.query.admission.heavy-cost:10}")
+    private int heavyCost;
+
+    @Value("${dynamic.query.admission.max-cost:100}")
+    private int maxCost;
+
+    @Value("${dynamic.query.admission.queue-size:64}")
+    private int queueSize;
+
+    @Value("${dynamic.query.admission.max-wait-ms:2000}")
+    private long maxWaitMs;
+
+    @Value("${dynamic.query.max-page-size:1000}")
+    private int maxPageSize;
+
+    private Semaphore global;
+    private Semaphore heavy;
+    private final Map<String, Semaphore> perEntity = new HashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        global = new Semaphore(maxConcurrent, true);
+        heavy = new Semaphore(maxHeavy, true);
+        for (EntityInfo info : registry.entities()) {
+            perEntity.put(info.getName(), new Semaphore(maxPerEntity, true));
+        }
+    }
+
+    /**
+     * Rejects client pages larger than {@code max-page-size}. Checked where client
+     * requests come in, not in {@link #admit}: internal reads (merged batch lookups)
+     * page past it on purpose.
+     */
+    public void checkPageSize(GenericRequest request) {
+        if (request.getSize() > maxPageSize) {
+            throw new IllegalArgumentException("Page size " + request.getSize()
+                    + " exceeds the maximum of " + maxPageSize);
+        }
+    }
+
+    /** Admission for a paged /dynamic/fetch. */
+    public Permit admit(GenericRequest request) {
+        return admit(request, false);
+    }
+
+    /**
+     * Admission for {@code request}; {@code unpaged} for reads of the whole result
+     * (page size is ignored there, the full read is charged instead).
+     */
+    public Permit admit(GenericRequest request, boolean unpaged) {
+        return admitAtCost(request, cost(request, unpaged));
+    }
+
+    /**
+     * Admission for {@code request} charged at {@code cost} instead of its own
+     * estimate: a merged batch lookup runs at the summed cost of the lookups it
+     * replaces, not at the cost of its large internal page.
+     */
+    Permit admitAtCost(GenericRequest request, int cost) {
+        // unknown entities fail here with the usual 400
+        EntityInfo info = registry.entity(request.getEntity());
+        if (cost > maxCost) {
+            throw new IllegalArgumentException("Query too expensive: estimated cost " + cost
+                    + " exceeds the maximum of " + maxCost + " (fewer joins, _like or subquery filters, or a smaller page)");
+        }
+        if (!enabled) {
+            return NONE;
+        }
+
+        List<Semaphore> needed = new ArrayList<>(3);
+        if (cost >= heavyCost) needed.add(heavy);
+        needed.add(perEntity.get(info.getName()));
+        needed.add(global);
+        List<Semaphore> held = new ArrayList<>(3);
+        boolean counted = false;
+        boolean admittedNow = false;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+            for (Semaphore s : needed) {
+                if (s.tryAcquire()) {
+                    held.add(s);
+                    continue;
+                }
+                if (!counted) {
+                    counted = true;
+                    queued.incrementAndGet();
+                    if (waiting.incrementAndGet() > queueSize) {
+                        throw reject("Too many queries waiting");
+                    }
+                }
+                if (!s.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    throw reject("No query slot free within " + maxWaitMs + " ms");
+                }
+                held.add(s);
+            }
+            admitted.incrementAndGet();
+            admittedNow = true;
+            return new Permit(held.toArray(new Semaphore[0]));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("Interrupted while waiting for a query slot");
+        } finally {
+            if (!admittedNow) {
+                for (int i = held.size() - 1; i >= 0; i--) {
+                    held.get(i).release();
+                }
+            }
+            if (counted) {
+                waiting.decrementAndGet();
+            }
+        }
+    }
+
+    private QueryRejectedException reject(String reason) {
+        rejected.incrementAndGet();
+        return new QueryRejectedException(reason + ", try again later",
+                Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxWaitMs)));
+    }
+
+    /** The estimated cost of {@code request}, see the class comment. */
+    int cost(GenericRequest request, boolean unpaged) {
+        EntityInfo info = registry.entity(request.getEntity());
+        int cost = 1;
+        if (!"none".equalsIgnoreCase(request.getCountMode()) && !unpaged) cost += 1;
+        if (unpaged) {
+            cost += 20;
+        } else {
+            cost += (Math.max(request.getSize(), 0) + 99) / 100;
+        }
+        if (request.isDistinct()) cost += 2;
+        if (request.isAggregate()) cost += 2;
+
+        Set<String> joins = new HashSet<>();
+        joins(info, request.getFields(), joins);
+        joins(info, request.getGroupBy(), joins);
+        if (request.getFetch() != null) {
+            joins.addAll(request.getFetch());   // fetched associations are joined themselves
+        }
+        if (request.getSorts() != null) {
+            for (GenericRequest.SortSpec s : request.getSorts()) joins(info, s.getField(), joins);
+        }
+        joins(info, request.getSort(), joins);
+        if (request.getFilters() != null) {
+            for (Map.Entry<String, Object> e : request.getFilters().entrySet()) {
+                String key = e.getKey();
+                int op = key.indexOf('_');
+                joins(info, op > 0 ? key.substring(0, op) : key, joins);
+                if (key.endsWith("_like")) {
+                    cost += 3;
+                } else if (key.endsWith("_inSubquery") && e.getValue() instanceof Map) {
+                    cost += 5 + subqueryCost((Map<?, ?>) e.getValue());
+                }
+            }
+        }
+        return cost + 2 * joins.size();
+    }
+
+    private int subqueryCost(Map<?, ?> spec) {
+        Object entity = spec.get("entity");
+        if (!(entity instanceof String)) return 0;   // rejected when the query is compiled
+        GenericRequest sub = new GenericRequest();
+        sub.setEntity((String) entity);
+        sub.setFields(spec.get("field") instanceof String
+                ? Collections.singletonList((String) spec.get("field")) : null);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> filters = spec.get("filters") instanceof Map ? (Map<String, Object>) spec.get("filters") : null;
+        sub.setFilters(filters);
+        sub.setCountMode("none");
+        sub.setSize(0);
+        return cost(sub, false) - 1;
+    }
+
+    private static void joins(EntityInfo info, List<String> paths, Set<String> joins) {
+        if (paths != null) {
+            for (String p : paths) joins(info, p, joins);
+        }
+    }
+
+    /** Adds the association prefixes {@code path} needs joined; a trailing to-one id is read from the foreign key. */
+    private static void joins(EntityInfo info, String path, Set<String> joins) {
+        if (path == null || !info.hasPath(path)) return;   // unknown paths are rejected when compiling
+        EntityRegistry.AttributePath p = info.path(path);
+        int depth = p.foreignKey ? p.joinKeys.length - 1 : p.joinKeys.length;
+        joins.addAll(Arrays.asList(p.joinKeys).subList(0, depth));
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> s = new LinkedHashMap<>();
+        s.put("enabled", enabled);
+        s.put("maxConcurrent", maxConcurrent);
+        s.put("running", maxConcurrent - global.availablePermits());
+        s.put("runningHeavy", maxHeavy - heavy.availablePermits());
+        s.put("waiting", waiting.get());
+        s.put("admitted", admitted.get());
+        s.put("queued", queued.get());
+        s.put("rejected", rejected.get());
+        return s;
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.dto.GenericRequest.SortSpec;
+import com.example.dynamicquery.dto.ProjectedRows;
+import com.example.dynamicquery.dto.RowSchema;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Executes a list of {@link GenericRequest}s for /dynamic/batch.
+ * <ul>
+ *   <li>identical items (same canonical request) run once and share the result;</li>
+ *   <li>single-field distinct lookups on the same entity with the same filters are
+ *       answered from one multi-column DISTINCT query, as long as it stays under
+ *       the merge row limit; it is admitted at the summed cost of those lookups;</li>
+ *   <li>everything else runs on the batch executor, so at most
+ *       {@code dynamic.query.batch.parallelism} items hit the database at once.</li>
+ * </ul>
+ * Results come back in request order; a failing item yields an error entry
+ * instead of failing the whole batch (a failed merged lookup falls back to
+ * running each of its members alone).
+ */
+@Service
+public class BatchQueryService {
+
+    @Autowired
+    private GenericQueryService genericQueryService;
+
+    @Autowired
+    private AdmissionControl admission;
+
+    @Autowired
+    private EntityRegistry registry;
+
+    @Autowired
+    @Qualifier("batchExecutor")
+    private ExecutorService batchExecutor;
+
+    @Value("${dynamic.query.batch.max-items:50}")
+    private int maxItems;
+
+    @Value("${dynamic.query.batch.distinct-merge-limit:5000}")
+    private int distinctMergeLimit;
+
+    public List<Map<String, Object>> execute(List<GenericRequest> requests) {
+        if (requests.size() > maxItems) {
+            throw new IllegalArgumentException("Batch exceeds " + maxItems + " items");
+        }
+
+        // -----------------------------------------------------------------
+        // Dedupe: one task per distinct request (oversized pages fail alone)
+        // -----------------------------------------------------------------
+        Map<String, GenericRequest> unique = new LinkedHashMap<>();
+        Map<String, CompletableFuture<Map<String, Object>>> results = new HashMap<>();
+        String[] keys = new String[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            GenericRequest r = requests.get(i);
+            keys[i] = r == null ? null : RequestKeys.full(r);
+            if (r == null || results.containsKey(keys[i])) continue;
+            try {
+                admission.checkPageSize(r);
+                unique.putIfAbsent(keys[i], r);
+            } catch (IllegalArgumentException e) {
+                results.put(keys[i], CompletableFuture.failedFuture(e));
+            }
+        }
+
+        // -----------------------------------------------------------------
+        // Group mergeable distinct lookups by entity + filters
+        // -----------------------------------------------------------------
+        Map<String, List<String>> distinctGroups = new LinkedHashMap<>();
+        for (Map.Entry<String, GenericRequest> e : unique.entrySet()) {
+            if (isMergeableDistinct(e.getValue()) && hasField(e.getValue())) {
+                distinctGroups.computeIfAbsent(mergeKey(e.getValue()), k -> new ArrayList<>()).add(e.getKey());
+            }
+        }
+
+        for (List<String> group : distinctGroups.values()) {
+            if (group.size() < 2) continue;
+            List<GenericRequest> members = new ArrayList<>();
+            for (String k : group) members.add(unique.get(k));
+            CompletableFuture<ProjectedRows> merged = submit(() -> runMergedDistinct(members));
+            for (int i = 0; i < group.size(); i++) {
+                GenericRequest member = members.get(i);
+                // over the limit or failed: the member runs on its own and gets its own result or error
+                results.put(group.get(i), merged.handle((rows, failure) -> rows != null
+                        ? CompletableFuture.completedFuture(slice(rows, member))
+                        : submit(() -> genericQueryService.fetchData(member)))
+                        .thenCompose(f -> f));
+            }
+        }
+        for (Map.Entry<String, GenericRequest> e : unique.entrySet()) {
+            if (!results.containsKey(e.getKey())) {
+                GenericRequest r = e.getValue();
+                results.put(e.getKey(), submit(() -> genericQueryService.fetchData(r)));
+            }
+        }
+
+        // -----------------------------------------------------------------
+        // Collect in request order
+        // -----------------------------------------------------------------
+        List<Map<String, Object>> out = new ArrayList<>(requests.size());
+        for (String key : keys) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            if (key == null) {
+                item.put("status", "error");
+                item.put("error", "Empty request");
+                out.add(item);
+                continue;
+            }
+            try {
+                item.put("status", "ok");
+                item.put("result", results.get(key).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                item.put("status", "error");
+                item.put("error", "Interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+                item.clear();
+                item.put("status", "error");
+                item.put("error", describe(cause));
+            }
+            out.add(item);
+        }
+        return out;
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, batchExecutor);
+    }
+
+    private static String describe(Throwable t) {
+        return t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName();
+    }
+
+    private static boolean isMergeableDistinct(GenericRequest r) {
+        return r.isDistinct()
+                && !r.isAggregate()
+                && !r.isExport()
+                && !r.isKeyset()
+                && (r.getFetch() == null || r.getFetch().isEmpty())    // a slice carries no fetched columns
+                && r.getFields() != null && r.getFields().size() == 1
+                && sortedBySelf(r);
+    }
+
+    /** Unknown entities or fields stay out of merges, so they fail alone instead of failing the merged query. */
+    private boolean hasField(GenericRequest r) {
+        try {
+            return registry.entity(r.getEntity()).hasPath(r.getFields().get(0));
+        } catch (IllegalArgumentException unknownEntity) {
+            return false;
+        }
+    }
+
+    private static String mergeKey(GenericRequest r) {
+        StringBuilder sb = new StringBuilder(r.getEntity()).append("|w=");
+        RequestKeys.appendCanonical(sb, r.getFilters());
+        return sb.toString();
+    }
+
+    /** A merged lookup can only reproduce orderings on the looked-up field itself. */
+    private static boolean sortedBySelf(GenericRequest r) {
+        String field = r.getFields().get(0);
+        if (r.getSorts() != null && !r.getSorts().isEmpty()) {
+            return r.getSorts().stream().allMatch(s -> field.equals(s.getField()));
+        }
+        return r.getSort() == null || r.getSort().isEmpty() || field.equals(r.getSort().split(",")[0]);
+    }
+
+    // =====================================================================
+    // Merged distinct lookups
+    // =====================================================================
+
+    /**
+     * One SELECT DISTINCT over all looked-up fields; each member then takes the
+     * distinct values of its own column. Returns null when the combined result
+     * exceeds the merge limit, in which case members run on their own. The query
+     * reads up to the merge limit, which would make it a heavy query by its own
+     * estimate; it replaces the members, so it is admitted at their summed cost.
+     */
+    private ProjectedRows runMergedDistinct(List<GenericRequest> members) {
+        GenericRequest first = members.get(0);
+        LinkedHashSet<String> fields = new LinkedHashSet<>();
+        for (GenericRequest m : members) fields.add(m.getFields().get(0));
+
+        GenericRequest combined = new GenericRequest();
+        combined.setEntity(first.getEntity());
+        combined.setFields(new ArrayList<>(fields));
+        combined.setFilters(first.getFilters());
+        combined.setDistinct(true);
+        combined.setSize(distinctMergeLimit);
+        combined.setCountMode("none");
+
+        int cost = members.stream().mapToInt(m -> admission.cost(m, false)).sum();
+        Map<String, Object> resp = genericQueryService.fetchData(combined, () -> admission.admitAtCost(combined, cost));
+        if (Boolean.TRUE.equals(resp.get("hasNext"))) {
+            return null;
+        }
+        return (ProjectedRows) resp.get("content");
+    }
+
+    /** One member's answer: the distinct values of its column, ordered and paged like the database would. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, Object> slice(ProjectedRows rows, GenericRequest request) {
+        String field = request.getFields().get(0);
+        int column = rows.getSchema().indexOf(field);
+        LinkedHashSet<Object> distinct = new LinkedHashSet<>();
+        for (Object[] row : rows.getRows()) distinct.add(row[column]);
+
+        // database default ordering: nulls first ascending, last descending
+        List<Object> values = new ArrayList<>(distinct);
+        Comparator<Object> asc = Comparator.nullsFirst((Comparator) Comparator.naturalOrder());
+        boolean sorted = (request.getSorts() != null && !request.getSorts().isEmpty())
+                || (request.getSort() != null && !request.getSort().isEmpty());
+        if (sorted) {
+            values.sort(isDesc(request) ? asc.reversed() : asc);
+        }
+
+        int size = request.getSize();
+        int from = Math.min(request.getPage() * size, values.size());
+        int to = Math.min(from + size, values.size());
+        List<Object[]> content = new ArrayList<>(to - from);
+        for (Object v : values.subList(from, to)) {
+            content.add(new Object[]{v});
+        }
+
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("content", new ProjectedRows(new RowSchema(Collections.singletonList(field)), content, request.isColumnar()));
+        resp.put("size", size);
+        resp.put("page", request.getPage());
+        if ("none".equalsIgnoreCase(request.getCountMode())) {
+            resp.put("hasNext", to < values.size());
+        } else {
+            resp.put("totalElements", (long) values.size());
+            resp.put("totalPages", (int) Math.ceil((double) values.size() / size));
+        }
+        return resp;
+    }
+
+    private static boolean isDesc(GenericRequest r) {
+        if (r.getSorts() != null && !r.getSorts().isEmpty()) {
+            SortSpec s = r.getSorts().get(0);
+            return "desc".equalsIgnoreCase(s.getDirection());
+        }
+        String[] sp = r.getSort().split(",");
+        return sp.length > 1 && "desc".equalsIgnoreCase(sp[1]);
+    }
+}
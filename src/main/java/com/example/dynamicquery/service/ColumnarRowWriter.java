@@ -0,0 +1,209 @@
+package com.example.dynamicquery.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes rows in a compact column-major binary layout, gzip-compressed. Rows are
+ * buffered into row groups; each group is written column by column, so values of
+ * one type sit next to each other and compress far better than row formats.
+ *
+ * <pre>
+ * "DQC1" | int columns | columns x UTF name
+ * row group: int rows | per column: byte type, null bitmap (1 = null, (rows+7)/8 bytes), values
+ *   'L' integral / 'T' LocalDate (epoch day): zigzag varint deltas from the previous value
+ *   'D' floating point: 8-byte IEEE 754
+ *   'B' boolean: 1 byte
+ *   'S' text: varint length + UTF-8
+ *   'E' text, dictionary: varint size, entries as for 'S', then a varint index per value
+ *   'N' every value null: no bitmap, no values
+ * int 0 ends the file
+ * </pre>
+ */
+class ColumnarRowWriter implements RowHandler {
+
+    static final byte[] MAGIC = {'D', 'Q', 'C', '1'};
+
+    private final DataOutputStream out;
+    private final int columns;
+    private final int rowGroupSize;
+    private final List<Object[]> group;
+
+    ColumnarRowWriter(OutputStream out, List<String> headers, int rowGroupSize) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out, 64 * 1024), 64 * 1024));
+        this.columns = headers.size();
+        this.rowGroupSize = rowGroupSize;
+        this.group = new ArrayList<>(rowGroupSize);
+        this.out.write(MAGIC);
+        this.out.writeInt(columns);
+        for (String h : headers) {
+            this.out.writeUTF(h);
+        }
+    }
+
+    @Override
+    public void handle(Object[] values) throws IOException {
+        group.add(values);
+        if (group.size() >= rowGroupSize) {
+            flushGroup();
+        }
+    }
+
+    void finish() throws IOException {
+        flushGroup();
+        out.writeInt(0);
+        out.close();    // finishes the gzip trailer
+    }
+
+    private void flushGroup() throws IOException {
+        if (group.isEmpty()) {
+            return;
+        }
+        out.writeInt(group.size());
+        for (int c = 0; c < columns; c++) {
+            writeColumn(c);
+        }
+        group.clear();
+    }
+
+    private void writeColumn(int c) throws IOException {
+        byte type = columnType(c);
+        TextColumn text = type == 'S' ? new TextColumn(c) : null;
+        if (text != null && text.repeats()) {
+            type = 'E';
+        }
+        out.writeByte(type);
+        if (type == 'N') {
+            return;
+        }
+        int rows = group.size();
+        byte[] nulls = new byte[(rows + 7) / 8];
+        for (int r = 0; r < rows; r++) {
+            if (group.get(r)[c] == null) {
+                nulls[r >> 3] |= (byte) (1 << (r & 7));
+            }
+        }
+        out.write(nulls);
+
+        if (text != null) {
+            text.write(type == 'E');
+            return;
+        }
+        long previous = 0;
+        for (Object[] row : group) {
+            Object v = row[c];
+            if (v == null) {
+                continue;
+            }
+            switch (type) {
+                case 'L':
+                case 'T': {
+                    long n = type == 'T' ? ((LocalDate) v).toEpochDay() : ((Number) v).longValue();
+                    writeVarLong(zigzag(n - previous));
+                    previous = n;
+                    break;
+                }
+                case 'D':
+                    out.writeDouble(((Number) v).doubleValue());
+                    break;
+                default:
+                    out.writeBoolean((Boolean) v);
+            }
+        }
+    }
+
+    /** Non-null values of a text column with their distinct entries, in first-seen order. */
+    private final class TextColumn {
+        final Map<String, Integer> dictionary = new HashMap<>();
+        final List<String> entries = new ArrayList<>();
+        final List<String> values = new ArrayList<>(group.size());
+
+        TextColumn(int c) {
+            for (Object[] row : group) {
+                if (row[c] != null) {
+                    String s = row[c].toString();
+                    values.add(s);
+                    if (dictionary.putIfAbsent(s, entries.size()) == null) {
+                        entries.add(s);
+                    }
+                }
+            }
+        }
+
+        /** Worth a dictionary: at most half of the values are distinct. */
+        boolean repeats() {
+            return entries.size() * 2 <= values.size();
+        }
+
+        void write(boolean dict) throws IOException {
+            if (!dict) {
+                for (String s : values) {
+                    writeString(s);
+                }
+                return;
+            }
+            writeVarLong(entries.size());
+            for (String e : entries) {
+                writeString(e);
+            }
+            for (String s : values) {
+                writeVarLong(dictionary.get(s));
+            }
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        out.write(bytes);
+    }
+
+    /** One type for the column within this group; mixed or unknown types are written as text. */
+    private byte columnType(int c) {
+        byte type = 'N';
+        for (Object[] row : group) {
+            Object v = row[c];
+            if (v == null) {
+                continue;
+            }
+            byte t;
+            if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+                t = 'L';
+            } else if (v instanceof Double || v instanceof Float) {
+                t = 'D';
+            } else if (v instanceof Boolean) {
+                t = 'B';
+            } else if (v instanceof LocalDate) {
+                t = 'T';
+            } else {
+                return 'S';
+            }
+            if (type != 'N' && type != t) {
+                return 'S';
+            }
+            type = t;
+        }
+        return type;
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private void writeVarLong(long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+}
@@ -0,0 +1,559 @@
+package com.example.dynamicquery.service;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * In-memory copy of one entity's rows, stored column by column: integral, date and
+ * boolean columns in {@code long[]}, floating-point ones in {@code double[]},
+ * strings as {@code int[]} codes into a per-column dictionary, nulls in a bitmap.
+ * Row slots are never reused: deleted rows are only flagged, and new rows are
+ * appended, so slot order stays close to id order.
+ *
+ * <p>Filters run column at a time over an array of candidate slots, in parallel
+ * slices for large snapshots. Readers hold the read lock for the whole query;
+ * {@link #apply} takes the write lock.
+ */
+final class ColumnarSnapshot {
+
+    /** Narrows sel[0..n) to the slots that match, in place; returns the new count. */
+    @FunctionalInterface
+    interface RowFilter {
+        int apply(int[] sel, int n);
+    }
+
+    /** Orders two row slots. */
+    @FunctionalInterface
+    interface RowOrder {
+        int compare(int a, int b);
+    }
+
+    /**
+     * A column stored as order-preserving numbers: ranges and arithmetic aggregates
+     * are only offered by these. Dictionary-encoded strings are not one.
+     */
+    interface NumericColumn {
+        RowFilter between(Object from, Object to);
+
+        /** For sum and avg; only called when the column's type is a {@link Number}. */
+        double doubleValue(int row);
+
+        long longValue(int row);
+    }
+
+    // =====================================================================
+    // Columns
+    // =====================================================================
+
+    /** Values of one column for every slot. */
+    abstract static class Column {
+        final String name;
+        final Class<?> type;        // boxed type values are returned as
+        long[] nulls = new long[0];
+
+        Column(String name, Class<?> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        final boolean isNull(int row) {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        final Object get(int row) {
+            return isNull(row) ? null : value(row);
+        }
+
+        final void set(int row, Object value) {
+            if (value == null) {
+                nulls[row >>> 6] |= 1L << row;
+            } else {
+                nulls[row >>> 6] &= ~(1L << row);
+                store(row, value);
+            }
+        }
+
+        void grow(int capacity) {
+            nulls = Arrays.copyOf(nulls, (capacity + 63) >>> 6);
+        }
+
+        /** NULL sorts lowest, as in H2: first ascending, last descending. */
+        final int compare(int a, int b) {
+            boolean na = isNull(a);
+            boolean nb = isNull(b);
+            if (na || nb) {
+                return na == nb ? 0 : na ? -1 : 1;
+            }
+            return compareValues(a, b);
+        }
+
+        boolean isNumeric() {
+            return Number.class.isAssignableFrom(type);
+        }
+
+        abstract Object value(int row);
+
+        abstract void store(int row, Object value);
+
+        abstract int compareValues(int a, int b);
+
+        abstract RowFilter equalTo(Object value);
+
+        /** Case-insensitive contains; null when the column does not support it. */
+        RowFilter contains(String text) {
+            return null;
+        }
+    }
+
+    /** Integral numbers, dates (epoch day) and booleans (0/1), encoded as longs that keep their order. */
+    static final class LongColumn extends Column implements NumericColumn {
+        private final ToLongFunction<Object> encode;
+        private final LongFunction<Object> decode;
+        long[] values = new long[0];
+
+        LongColumn(String name, Class<?> type, ToLongFunction<Object> encode, LongFunction<Object> decode) {
+            super(name, type);
+            this.encode = encode;
+            this.decode = decode;
+        }
+
+        @Override
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        Object value(int row) {
+            return decode.apply(values[row]);
+        }
+
+        @Override
+        void store(int row, Object value) {
+            values[row] = encode.applyAsLong(value);
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            return Long.compare(values[a], values[b]);
+        }
+
+        @Override
+        RowFilter equalTo(Object value) {
+            long v = encode.applyAsLong(value);
+            return (sel, n) -> {
+                long[] vals = values;
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    if (vals[r] == v && !isNull(r)) sel[k++] = r;
+                }
+                return k;
+            };
+        }
+
+        @Override
+        public RowFilter between(Object from, Object to) {
+            long lo = encode.applyAsLong(from);
+            long hi = encode.applyAsLong(to);
+            return (sel, n) -> {
+                long[] vals = values;
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    long v = vals[r];
+                    if (v >= lo && v <= hi && !isNull(r)) sel[k++] = r;
+                }
+                return k;
+            };
+        }
+
+        @Override
+        public double doubleValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        public long longValue(int row) {
+            return values[row];
+        }
+    }
+
+    static final class DoubleColumn extends Column implements NumericColumn {
+        double[] values = new double[0];
+
+        DoubleColumn(String name, Class<?> type) {
+            super(name, type);
+        }
+
+        @Override
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        Object value(int row) {
+            return type == Float.class ? (Object) (float) values[row] : (Object) values[row];
+        }
+
+        @Override
+        void store(int row, Object value) {
+            values[row] = ((Number) value).doubleValue();
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            return Double.compare(values[a], values[b]);
+        }
+
+        @Override
+        RowFilter equalTo(Object value) {
+            double v = ((Number) value).doubleValue();
+            return (sel, n) -> {
+                double[] vals = values;
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    if (vals[r] == v && !isNull(r)) sel[k++] = r;
+                }
+                return k;
+            };
+        }
+
+        @Override
+        public RowFilter between(Object from, Object to) {
+            double lo = ((Number) from).doubleValue();
+            double hi = ((Number) to).doubleValue();
+            return (sel, n) -> {
+                double[] vals = values;
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    double v = vals[r];
+                    if (v >= lo && v <= hi && !isNull(r)) sel[k++] = r;
+                }
+                return k;
+            };
+        }
+
+        @Override
+        public double doubleValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        public long longValue(int row) {
+            return (long) values[row];
+        }
+    }
+
+    /**
+     * Dictionary-encoded strings. Predicates are evaluated once per distinct value,
+     * then the codes are scanned against the resulting bitmap.
+     */
+    static final class StringColumn extends Column {
+        int[] codes = new int[0];
+        final List<String> dictionary = new ArrayList<>();
+        private final Map<String, Integer> lookup = new HashMap<>();
+        private volatile int[] ranks;   // sort position of each code; rebuilt after the dictionary grows
+
+        StringColumn(String name) {
+            super(name, String.class);
+        }
+
+        @Override
+        void grow(int capacity) {
+            super.grow(capacity);
+            codes = Arrays.copyOf(codes, capacity);
+        }
+
+        @Override
+        Object value(int row) {
+            return dictionary.get(codes[row]);
+        }
+
+        @Override
+        void store(int row, Object value) {
+            codes[row] = lookup.computeIfAbsent((String) value, s -> {
+                dictionary.add(s);
+                ranks = null;
+                return dictionary.size() - 1;
+            });
+        }
+
+        private int[] ranks() {
+            int[] r = ranks;
+            if (r == null) {
+                Integer[] order = new Integer[dictionary.size()];
+                for (int i = 0; i < order.length; i++) order[i] = i;
+                Arrays.sort(order, Comparator.comparing(dictionary::get));
+                r = new int[order.length];
+                for (int i = 0; i < order.length; i++) r[order[i]] = i;
+                ranks = r;
+            }
+            return r;
+        }
+
+        @Override
+        int compareValues(int a, int b) {
+            int[] r = ranks();
+            return Integer.compare(r[codes[a]], r[codes[b]]);
+        }
+
+        @Override
+        RowFilter equalTo(Object value) {
+            Integer code = lookup.get((String) value);
+            if (code == null) {
+                return (sel, n) -> 0;
+            }
+            int c = code;
+            return (sel, n) -> {
+                int[] cs = codes;
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    if (cs[r] == c && !isNull(r)) sel[k++] = r;
+                }
+                return k;
+            };
+        }
+
+        @Override
+        RowFilter contains(String text) {
+            String needle = text.toLowerCase();
+            return matching(s -> s.toLowerCase().contains(needle));
+        }
+
+        private RowFilter matching(Predicate<String> test) {
+            boolean[] match = new boolean[dictionary.size()];
+            for (int i = 0; i < match.length; i++) {
+                match[i] = test.test(dictionary.get(i));
+            }
+            return (sel, n) -> {
+                int[] cs = codes;
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    int r = sel[i];
+                    if (!isNull(r) && match[cs[r]]) sel[k++] = r;
+                }
+                return k;
+            };
+        }
+    }
+
+    /** A column for values of {@code type}, or null when the type is not supported. */
+    static Column columnFor(String name, Class<?> type) {
+        if (type == Long.class) {
+            return new LongColumn(name, type, v -> ((Number) v).longValue(), v -> v);
+        }
+        if (type == Integer.class) {
+            return new LongColumn(name, type, v -> ((Number) v).longValue(), v -> (int) v);
+        }
+        if (type == Short.class) {
+            return new LongColumn(name, type, v -> ((Number) v).longValue(), v -> (short) v);
+        }
+        if (type == Boolean.class) {
+            return new LongColumn(name, type, v -> (Boolean) v ? 1 : 0, v -> v != 0);
+        }
+        if (type == LocalDate.class) {
+            return new LongColumn(name, type, v -> ((LocalDate) v).toEpochDay(), LocalDate::ofEpochDay);
+        }
+        if (type == Double.class || type == Float.class) {
+            return new DoubleColumn(name, type);
+        }
+        if (type == String.class) {
+            return new StringColumn(name);
+        }
+        return null;
+    }
+
+    // =====================================================================
+    // Rows
+    // =====================================================================
+
+    final String entity;
+    final List<Column> columns;
+    private final Map<String, Column> byName = new HashMap<>();
+    private final Map<Object, Integer> slotOf = new HashMap<>();   // id -> slot
+    private long[] deleted = new long[0];
+    private int size;       // slots in use, deleted ones included
+    private int live;
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** {@code columns.get(0)} is the id. */
+    ColumnarSnapshot(String entity, List<Column> columns) {
+        this.entity = entity;
+        this.columns = columns;
+        for (Column c : columns) {
+            byName.put(c.name, c);
+        }
+    }
+
+    Column column(String name) {
+        return byName.get(name);
+    }
+
+    int liveRows() {
+        return live;
+    }
+
+    /**
+     * Inserts or overwrites {@code rows} (values in column order, id first) and
+     * drops the rows with the {@code removed} ids.
+     */
+    void apply(List<Object[]> rows, Collection<?> removed) {
+        lock.writeLock().lock();
+        try {
+            for (Object id : removed) {
+                Integer slot = slotOf.remove(id);
+                if (slot != null) {
+                    deleted[slot >>> 6] |= 1L << slot;
+                    live--;
+                }
+            }
+            for (Object[] values : rows) {
+                Integer slot = slotOf.get(values[0]);
+                if (slot == null) {
+                    slot = size++;
+                    if (slot == capacity()) {
+                        grow(Math.max(1024, slot + (slot >> 1)));
+                    }
+                    slotOf.put(values[0], slot);
+                    live++;
+                }
+                for (int i = 0; i < values.length; i++) {
+                    columns.get(i).set(slot, values[i]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int capacity() {
+        return deleted.length << 6;
+    }
+
+    private void grow(int capacity) {
+        capacity = (capacity + 63) & ~63;
+        deleted = Arrays.copyOf(deleted, capacity >>> 6);
+        for (Column c : columns) {
+            c.grow(capacity);
+        }
+    }
+
+    // =====================================================================
+    // Query primitives (call with the read lock held)
+    // =====================================================================
+
+    /**
+     * Slots of the live rows passing every filter, in slot order. Snapshots larger
+     * than {@code minRowsPerTask} are split into slices filtered on {@code pool}.
+     */
+    int[] select(List<RowFilter> filters, ForkJoinPool pool, int minRowsPerTask) {
+        int slots = size;
+        int tasks = Math.max(1, Math.min(pool.getParallelism(), slots / Math.max(1, minRowsPerTask)));
+        if (tasks == 1) {
+            return select(filters, 0, slots);
+        }
+        List<ForkJoinTask<int[]>> parts = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            int from = (int) ((long) slots * t / tasks);
+            int to = (int) ((long) slots * (t + 1) / tasks);
+            parts.add(pool.submit(() -> select(filters, from, to)));
+        }
+        int total = 0;
+        List<int[]> done = new ArrayList<>(tasks);
+        for (ForkJoinTask<int[]> part : parts) {
+            int[] sel = part.join();
+            done.add(sel);
+            total += sel.length;
+        }
+        int[] out = new int[total];
+        int pos = 0;
+        for (int[] sel : done) {
+            System.arraycopy(sel, 0, out, pos, sel.length);
+            pos += sel.length;
+        }
+        return out;
+    }
+
+    private int[] select(List<RowFilter> filters, int from, int to) {
+        int[] sel = new int[to - from];
+        int n = 0;
+        for (int r = from; r < to; r++) {
+            if ((deleted[r >>> 6] & (1L << r)) == 0) sel[n++] = r;
+        }
+        for (RowFilter f : filters) {
+            if (n == 0) break;
+            n = f.apply(sel, n);
+        }
+        return n == sel.length ? sel : Arrays.copyOf(sel, n);
+    }
+
+    /**
+     * The first {@code k} slots of {@code sel} in {@code order}, ties broken by slot
+     * (so by insertion order): a bounded max-heap, O(n log k).
+     */
+    static int[] top(int[] sel, int k, RowOrder order) {
+        k = Math.min(k, sel.length);
+        if (k == 0) {
+            return new int[0];
+        }
+        RowOrder total = (a, b) -> {
+            int c = order.compare(a, b);
+            return c != 0 ? c : Integer.compare(a, b);
+        };
+        int[] heap = new int[k];
+        int n = 0;
+        for (int r : sel) {
+            if (n < k) {
+                heap[n] = r;
+                siftUp(heap, n++, total);
+            } else if (total.compare(r, heap[0]) < 0) {
+                heap[0] = r;
+                siftDown(heap, n, total);
+            }
+        }
+        // pop the largest to the back until the heap is empty: ascending order
+        for (int end = n - 1; end > 0; end--) {
+            int max = heap[0];
+            heap[0] = heap[end];
+            heap[end] = max;
+            siftDown(heap, end, total);
+        }
+        return heap;
+    }
+
+    private static void siftUp(int[] heap, int i, RowOrder order) {
+        int x = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (order.compare(heap[parent], x) >= 0) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = x;
+    }
+
+    private static void siftDown(int[] heap, int n, RowOrder order) {
+        int x = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) break;
+            if (child + 1 < n && order.compare(heap[child + 1], heap[child]) > 0) child++;
+            if (order.compare(heap[child], x) <= 0) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = x;
+    }
+}
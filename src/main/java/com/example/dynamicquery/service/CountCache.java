@@ -0,0 +1,43 @@
+package com.example.dynamicquery.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Total counts for countMode=cached, keyed by entity plus the concrete filter set.
+ * Entries expire after a TTL and are ignored as soon as any entity the count
+ * query reads has been written (see {@link EntityChangeTracker}).
+ */
+@Component
+public class CountCache {
+
+    @Autowired
+    private EntityChangeTracker tracker;
+
+    @Value("${dynamic.query.count-cache.max-size:1000}")
+    private int maxSize;
+
+    @Value("${dynamic.query.count-cache.ttl-ms:30000}")
+    private long ttlMs;
+
+    private VersionedCache<Long> counts;
+
+    @PostConstruct
+    void init() {
+        counts = new VersionedCache<>(maxSize, ttlMs, tracker, false);
+    }
+
+    long get(String key, List<String> entities, Supplier<Long> loader) {
+        return counts.get(key, entities, loader);
+    }
+
+    public Map<String, Object> stats() {
+        return counts.stats();
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.dynamicquery.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes rows as RFC 4180 CSV (UTF-8, CRLF line ends) as they arrive. Fields
+ * holding a separator, quote or line break are quoted; nulls are empty fields.
+ */
+class CsvRowWriter implements RowHandler {
+
+    private final Writer out;
+
+    CsvRowWriter(OutputStream out, List<String> headers) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        handle(headers.toArray());
+    }
+
+    @Override
+    public void handle(Object[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            if (values[i] != null) {
+                writeField(values[i].toString());
+            }
+        }
+        out.write("\r\n");
+    }
+
+    private void writeField(String s) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(s);
+            return;
+        }
+        out.write('"');
+        out.write(s.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    void finish() throws IOException {
+        out.flush();
+    }
+}
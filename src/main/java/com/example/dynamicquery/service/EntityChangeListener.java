@@ -0,0 +1,45 @@
+package com.example.dynamicquery.service;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * JPA entity listener that reports every insert, update and delete to the
+ * {@link EntityChangeTracker}, the full-text {@link SearchIndex} and the columnar
+ * {@link SnapshotEngine}. Hibernate obtains it from the Spring context, so it can
+ * be autowired like any other bean (index and snapshots are looked up lazily: they
+ * need the EntityManagerFactory that is still being built when the listener is
+ * created).
+ */
+@Component
+public class EntityChangeListener {
+
+    @Autowired
+    private EntityChangeTracker tracker;
+
+    @Autowired
+    private ObjectProvider<SearchIndex> searchIndex;
+
+    @Autowired
+    private ObjectProvider<SnapshotEngine> snapshots;
+
+    @PostPersist
+    @PostUpdate
+    public void onChange(Object entity) {
+        tracker.changed(entity.getClass().getSimpleName());
+        searchIndex.ifAvailable(index -> index.changed(entity, false));
+        snapshots.ifAvailable(engine -> engine.changed(entity));
+    }
+
+    @PostRemove
+    public void onRemove(Object entity) {
+        tracker.changed(entity.getClass().getSimpleName());
+        searchIndex.ifAvailable(index -> index.changed(entity, true));
+        snapshots.ifAvailable(engine -> engine.changed(entity));
+    }
+}
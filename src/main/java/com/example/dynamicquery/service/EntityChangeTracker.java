@@ -0,0 +1,51 @@
+package com.example.dynamicquery.service;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-entity change counters. Anything derived from query results (cached counts,
+ * cached pages) records the versions of the entities it read and is stale as soon
+ * as one of them moves. Writes bump the version when they are flushed and again
+ * after commit, so a value recomputed between flush and commit is not trusted.
+ */
+@Component
+public class EntityChangeTracker {
+
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    public long version(String entity) {
+        AtomicLong v = versions.get(entity);
+        return v != null ? v.get() : 0L;
+    }
+
+    public long[] versions(List<String> entities) {
+        long[] out = new long[entities.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = version(entities.get(i));
+        }
+        return out;
+    }
+
+    public void changed(String entity) {
+        bump(entity);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    bump(entity);
+                }
+            });
+        }
+    }
+
+    private void bump(String entity) {
+        versions.computeIfAbsent(entity, k -> new AtomicLong()).incrementAndGet();
+    }
+}
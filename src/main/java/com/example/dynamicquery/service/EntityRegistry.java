@@ -0,0 +1,194 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.model.Filterable;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.metamodel.*;
+import java.util.*;
+
+/**
+ * Entity and attribute metadata resolved once from the JPA metamodel at startup.
+ * Requests name entities by simple class name and fields by dotted paths
+ * ({@code department.name}); both resolve here with a map lookup instead of
+ * {@code Class.forName} and string splitting, and anything not registered is
+ * rejected before a query is built.
+ */
+@Component
+public class EntityRegistry {
+
+    /** A resolved dotted path: attribute segments, the join each prefix needs, and the leaf type. */
+    public static final class AttributePath {
+        final String path;
+        final String[] segments;
+        final String[] joinKeys;     // joinKeys[i] = segments[0..i] joined, for every non-leaf segment
+        final Class<?> javaType;     // boxed
+        final boolean association;   // leaf is itself an entity reference
+        final String ownerEntity;    // entity declaring the leaf attribute
+        final boolean foreignKey;    // "<association>.<id>": readable from the FK column without a join
+
+        AttributePath(String path, String[] segments, Class<?> javaType, boolean association,
+                      String ownerEntity, boolean foreignKey) {
+            this.path = path;
+            this.segments = segments;
+            this.joinKeys = new String[segments.length - 1];
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < joinKeys.length; i++) {
+                if (i > 0) key.append('.');
+                key.append(segments[i]);
+                joinKeys[i] = key.toString();
+            }
+            this.javaType = javaType;
+            this.association = association;
+            this.ownerEntity = ownerEntity;
+            this.foreignKey = foreignKey;
+        }
+
+        public String getPath() { return path; }
+        public Class<?> getJavaType() { return javaType; }
+        public String getOwnerEntity() { return ownerEntity; }
+    }
+
+    /** A registered entity with every path reachable from it. */
+    public static final class EntityInfo {
+        final String name;
+        final Class<?> javaType;
+        final String idAttribute;
+        final List<String> basicAttributes;      // id first, then declaration order from the metamodel
+        final List<String> flatAttributes;       // basic attributes, then "<association>.<id>" per to-one association
+        final Map<String, AttributePath> paths;
+
+        EntityInfo(String name, Class<?> javaType, String idAttribute,
+                   List<String> basicAttributes, List<String> flatAttributes, Map<String, AttributePath> paths) {
+            this.name = name;
+            this.javaType = javaType;
+            this.idAttribute = idAttribute;
+            this.basicAttributes = Collections.unmodifiableList(basicAttributes);
+            this.flatAttributes = Collections.unmodifiableList(flatAttributes);
+            this.paths = Collections.unmodifiableMap(paths);
+        }
+
+        public String getName() { return name; }
+        public Class<?> getJavaType() { return javaType; }
+        public String getIdAttribute() { return idAttribute; }
+        public List<String> getBasicAttributes() { return basicAttributes; }
+        public List<String> getFlatAttributes() { return flatAttributes; }
+
+        public AttributePath path(String field) {
+            AttributePath p = paths.get(field);
+            if (p == null) {
+                throw new IllegalArgumentException("Unknown field '" + field + "' on " + name);
+            }
+            return p;
+        }
+
+        public boolean hasPath(String field) {
+            return paths.containsKey(field);
+        }
+    }
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    /** Entities exposed to requests; empty means every mapped entity. */
+    @Value("${dynamic.query.allowed-entities:}")
+    private Set<String> allowedEntities;
+
+    @Value("${dynamic.query.max-path-depth:3}")
+    private int maxPathDepth;
+
+    private final Map<String, EntityInfo> byName = new HashMap<>();
+    private final Map<Class<?>, EntityInfo> byType = new HashMap<>();
+
+    @PostConstruct
+    void init() {
+        Metamodel metamodel = entityManagerFactory.getMetamodel();
+        for (EntityType<?> type : metamodel.getEntities()) {
+            String name = type.getJavaType().getSimpleName();
+            if (!allowedEntities.isEmpty() && !allowedEntities.contains(name)) continue;
+
+            SingularAttribute<?, ?> id = type.getId(type.getIdType().getJavaType());
+            Set<String> basicNames = new HashSet<>();
+            for (Attribute<?, ?> a : type.getAttributes()) {
+                if (a.getPersistentAttributeType() == Attribute.PersistentAttributeType.BASIC) {
+                    basicNames.add(a.getName());
+                }
+            }
+            // lower-case copies named by @Filterable(lowerCase = ...) are for filtering, not projections
+            for (java.lang.reflect.Field f : type.getJavaType().getDeclaredFields()) {
+                Filterable filterable = f.getAnnotation(Filterable.class);
+                if (filterable != null) basicNames.remove(filterable.lowerCase());
+            }
+            // the metamodel's attribute set is unordered; keep the id first, then field declaration order
+            List<String> basics = new ArrayList<>();
+            basics.add(id.getName());
+            for (java.lang.reflect.Field f : type.getJavaType().getDeclaredFields()) {
+                if (basicNames.contains(f.getName()) && !f.getName().equals(id.getName())) {
+                    basics.add(f.getName());
+                }
+            }
+
+            Map<String, AttributePath> paths = new HashMap<>();
+            collectPaths(type, "", new ArrayList<>(), paths, 1);
+
+            // the flat projection adds each to-one association's id, read from its FK column
+            List<String> flat = new ArrayList<>(basics);
+            for (java.lang.reflect.Field f : type.getJavaType().getDeclaredFields()) {
+                AttributePath assoc = paths.get(f.getName());
+                if (assoc != null && assoc.association) {
+                    paths.values().stream()
+                            .filter(p -> p.foreignKey && p.segments.length == 2 && p.segments[0].equals(f.getName()))
+                            .findFirst()
+                            .ifPresent(p -> flat.add(p.path));
+                }
+            }
+            EntityInfo info = new EntityInfo(name, type.getJavaType(), id.getName(), basics, flat, paths);
+            byName.put(name, info);
+            byType.put(type.getJavaType(), info);
+        }
+    }
+
+    private void collectPaths(ManagedType<?> type,
+                              String prefix,
+                              List<String> segments,
+                              Map<String, AttributePath> out,
+                              int depth) {
+        for (SingularAttribute<?, ?> a : type.getSingularAttributes()) {
+            String path = prefix.isEmpty() ? a.getName() : prefix + "." + a.getName();
+            List<String> segs = new ArrayList<>(segments);
+            segs.add(a.getName());
+            boolean association = a.isAssociation();
+            boolean foreignKey = a.isId() && depth > 1;
+            out.put(path, new AttributePath(path, segs.toArray(new String[0]),
+                    ValueCoercion.box(a.getJavaType()), association,
+                    type.getJavaType().getSimpleName(), foreignKey));
+
+            if (association && depth < maxPathDepth && a.getType() instanceof ManagedType) {
+                collectPaths((ManagedType<?>) a.getType(), path, segs, out, depth + 1);
+            }
+        }
+    }
+
+    public EntityInfo entity(String name) {
+        EntityInfo info = name != null ? byName.get(name) : null;
+        if (info == null) {
+            throw new IllegalArgumentException("Unknown entity: " + name);
+        }
+        return info;
+    }
+
+    public EntityInfo entity(Class<?> type) {
+        EntityInfo info = byType.get(type);
+        if (info == null) {
+            throw new IllegalArgumentException("Unknown entity: " + type.getSimpleName());
+        }
+        return info;
+    }
+
+    public Collection<EntityInfo> entities() {
+        return Collections.unmodifiableCollection(byName.values());
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.dynamicquery.service;
+
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.streaming.DeferredSXSSFSheet;
+import org.apache.poi.xssf.streaming.DeferredSXSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Writes an xlsx workbook whose sheet rows are generated while the workbook is
+ * being written to the output stream. Only {@code rowWindow} rows live in memory
+ * at any time and the sheet data never goes through a temporary file.
+ */
+class ExcelStreamWriter {
+
+    /** Pushes rows into the handler; invoked while the sheet is being written. */
+    @FunctionalInterface
+    interface RowSource {
+        void emit(RowHandler handler) throws IOException;
+    }
+
+    private final int rowWindow;
+
+    ExcelStreamWriter(int rowWindow) {
+        this.rowWindow = rowWindow;
+    }
+
+    void write(String sheetName, List<String> headers, RowSource source, OutputStream out) throws IOException {
+        DeferredSXSSFWorkbook wb = new DeferredSXSSFWorkbook(rowWindow);
+        try {
+            DeferredSXSSFSheet sheet = wb.createSheet(sheetName != null ? sheetName : "export");
+
+            CellStyle dateStyle = wb.createCellStyle();
+            dateStyle.setDataFormat(wb.getCreationHelper().createDataFormat().getFormat("yyyy-MM-dd"));
+
+            // autoSizeColumn needs every row in memory; use a fixed width derived from the header instead
+            for (int i = 0; i < headers.size(); i++) {
+                sheet.setColumnWidth(i, Math.max(headers.get(i).length() + 2, 14) * 256);
+            }
+
+            sheet.setRowGenerator(s -> generateRows(s, headers, dateStyle, source));
+            wb.write(out);
+        } finally {
+            wb.dispose();
+            wb.close();
+        }
+    }
+
+    private void generateRows(SXSSFSheet sheet,
+                              List<String> headers,
+                              CellStyle dateStyle,
+                              RowSource source) throws IOException {
+        // Header
+        Row header = sheet.createRow(0);
+        for (int i = 0; i < headers.size(); i++) {
+            header.createCell(i).setCellValue(headers.get(i));
+        }
+
+        // Rows
+        int[] next = {1};
+        source.emit(values -> {
+            Row row = sheet.createRow(next[0]++);
+            for (int c = 0; c < values.length; c++) {
+                writeCell(row.createCell(c), values[c], dateStyle);
+            }
+        });
+    }
+
+    private static void writeCell(Cell cell, Object v, CellStyle dateStyle) {
+        if (v == null) {
+            cell.setBlank();
+        } else if (v instanceof Number) {
+            cell.setCellValue(((Number) v).doubleValue());
+        } else if (v instanceof LocalDate) {
+            cell.setCellValue((LocalDate) v);
+            cell.setCellStyle(dateStyle);
+        } else if (v instanceof Boolean) {
+            cell.setCellValue((Boolean) v);
+        } else {
+            cell.setCellValue(v.toString());
+        }
+    }
+}
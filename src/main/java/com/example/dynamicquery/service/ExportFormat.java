@@ -0,0 +1,53 @@
+package com.example.dynamicquery.service;
+
+import java.util.Locale;
+
+/**
+ * File formats an export job can write. CSV, NDJSON and the columnar format are
+ * written straight through as rows arrive; xlsx goes through the windowed
+ * streaming workbook.
+ */
+public enum ExportFormat {
+
+    XLSX("xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"),
+    CSV("csv", "text/csv"),
+    JSON("ndjson", "application/x-ndjson"),
+    COLUMNAR("cols.gz", "application/octet-stream");
+
+    private final String extension;
+    private final String contentType;
+
+    ExportFormat(String extension, String contentType) {
+        this.extension = extension;
+        this.contentType = contentType;
+    }
+
+    public String getExtension() { return extension; }
+
+    public String getContentType() { return contentType; }
+
+    /** Text formats, which are worth compressing on the way out. */
+    public boolean isText() { return this == CSV || this == JSON; }
+
+    /** Format of an export file, from its extension; null for anything else. */
+    public static ExportFormat forFile(String fileName) {
+        for (ExportFormat f : values()) {
+            if (fileName.endsWith("." + f.extension)) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    public static ExportFormat of(String name) {
+        if (name == null || name.isEmpty()) {
+            return XLSX;
+        }
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown export format: " + name
+                    + " (expected xlsx, csv, json or columnar)");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.dynamicquery.service;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of one export job, updated by the worker running it and read by status
+ * requests. The output file only appears under its final name once complete.
+ */
+final class ExportJob {
+
+    enum Status { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    final String id;
+    final String entity;
+    final ExportFormat format;
+    final Path file;
+    final Instant createdAt = Instant.now();
+    final AtomicLong rowsWritten = new AtomicLong();
+    final AtomicInteger chunksDone = new AtomicInteger();
+    volatile Status status = Status.QUEUED;
+    volatile Long totalRows;            // null until counted (or when the count timed out)
+    volatile int chunks;                // 0 while the job reads through a single cursor
+    volatile Instant startedAt;
+    volatile Instant finishedAt;
+    volatile String error;
+    volatile Future<?> future;
+    volatile AdmissionControl.Permit permit;   // taken at submit, released when the job ends
+
+    ExportJob(String id, String entity, ExportFormat format, Path file) {
+        this.id = id;
+        this.entity = entity;
+        this.format = format;
+        this.file = file;
+    }
+
+    boolean isFinished() {
+        return status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("jobId", id);
+        m.put("status", status);
+        m.put("entity", entity);
+        m.put("format", format.name().toLowerCase());
+        m.put("rowsWritten", rowsWritten.get());
+        m.put("totalRows", totalRows);
+        if (totalRows != null && totalRows > 0) {
+            m.put("progress", Math.min(1.0, (double) rowsWritten.get() / totalRows));
+        } else if (status == Status.DONE) {
+            m.put("progress", 1.0);
+        }
+        if (chunks > 0) {
+            m.put("chunks", chunks);
+            m.put("chunksDone", chunksDone.get());
+        }
+        m.put("createdAt", createdAt.toString());
+        m.put("startedAt", startedAt != null ? startedAt.toString() : null);
+        m.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+        if (status == Status.DONE) {
+            m.put("file", file.toString());
+            m.put("download", "/dynamic/export/jobs/" + id + "/file");
+            m.put("bytes", file.toFile().length());
+        }
+        if (error != null) {
+            m.put("error", error);
+        }
+        return m;
+    }
+}
@@ -0,0 +1,437 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.dto.GenericRequest.SortSpec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs exports as background jobs. A submitted export gets an id and a file of
+ * its own, is run by a bounded worker pool, reports progress while it runs and is
+ * deleted (with its file) a while after it finished.
+ *
+ * <p>Large unsorted exports are split into id ranges. Up to {@code chunk-parallelism}
+ * ranges are read ahead concurrently, each in its own transaction, while the job
+ * thread writes the ranges in id order.
+ */
+@Service
+public class ExportJobService {
+
+    private static final Logger log = LoggerFactory.getLogger(ExportJobService.class);
+
+    @Autowired
+    private GenericQueryService genericQueryService;
+
+    @Autowired
+    private EntityRegistry registry;
+
+    @Autowired
+    private QueryMetrics metrics;
+
+    @Autowired
+    private AdmissionControl admission;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    @Qualifier("exportJobExecutor")
+    private ExecutorService jobExecutor;
+
+    @Autowired
+    @Qualifier("exportChunkExecutor")
+    private ExecutorService chunkExecutor;
+
+    @Value("${dynamic.export.dir:${java.io.tmpdir}/dynamic-exports}")
+    private String exportDir;
+
+    @Value("${dynamic.export.jobs.ttl-ms:3600000}")
+    private long ttlMs;
+
+    @Value("${dynamic.export.chunk-rows:50000}")
+    private long chunkRows;
+
+    @Value("${dynamic.export.chunk-parallelism:4}")
+    private int chunkParallelism;
+
+    @Value("${dynamic.export.row-window:100}")
+    private int rowWindow;
+
+    @Value("${dynamic.export.row-group-size:10000}")
+    private int rowGroupSize;
+
+    private Path dir;
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() throws IOException {
+        dir = Paths.get(exportDir).toAbsolutePath().normalize();
+        Files.createDirectories(dir);
+    }
+
+    /** Directory every export file is written to. */
+    public Path getExportDir() {
+        return dir;
+    }
+
+    /**
+     * An export file named by a client: a name inside the export directory or a
+     * path to one. Null when it resolves (symlinks included) to anywhere else, or
+     * to a file still being written.
+     */
+    public Path exportFile(String filePath) throws IOException {
+        Path file;
+        try {
+            file = dir.resolve(filePath).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!file.startsWith(dir) || file.equals(dir) || file.getFileName().toString().endsWith(".part")) {
+            return null;
+        }
+        if (Files.exists(file) && !file.toRealPath().startsWith(dir.toRealPath())) {
+            return null;
+        }
+        return file;
+    }
+
+    // =====================================================================
+    // Submission, status, cancellation
+    // =====================================================================
+
+    /**
+     * Validates the request, admits it as a full read (see {@link AdmissionControl})
+     * and queues it. The admission permit is held until the job ends, so running and
+     * queued jobs count against the query limits like /export streams do; the chunk
+     * reads of a job share its permit. Fails with IllegalArgumentException for an
+     * unknown entity, field or format, with QueryRejectedException when admission
+     * refuses the export, and with ExportQueueFullException when the job queue is full.
+     */
+    public Map<String, Object> submit(GenericRequest request) {
+        ExportFormat format = ExportFormat.of(request.getExportFormat());
+        request.setExport(true);    // the whole result, whatever paging the request carries
+        List<String> fields = genericQueryService.exportFields(request);
+        AdmissionControl.Permit permit = admission.admit(request, true);
+
+        String id = UUID.randomUUID().toString();
+        String entity = request.getEntity();
+        ExportJob job = new ExportJob(id, entity, format, dir.resolve(entity + "-" + id + "." + format.getExtension()));
+        job.permit = permit;
+        jobs.put(id, job);
+        try {
+            job.future = jobExecutor.submit(() -> run(job, request, fields));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(id);
+            permit.close();
+            throw new ExportQueueFullException("Too many export jobs queued, try again later", e);
+        }
+        return job.toMap();
+    }
+
+    /** Status and progress of a job, or null when there is no such job (or it has expired). */
+    public Map<String, Object> status(String id) {
+        ExportJob job = jobs.get(id);
+        return job != null ? job.toMap() : null;
+    }
+
+    public List<Map<String, Object>> list() {
+        return jobs.values().stream()
+                .sorted(Comparator.comparing(j -> j.createdAt))
+                .map(ExportJob::toMap)
+                .collect(Collectors.toList());
+    }
+
+    /** Cancels a job that is still queued or running and deletes its file. False when unknown. */
+    public boolean delete(String id) {
+        ExportJob job = jobs.remove(id);
+        if (job == null) {
+            return false;
+        }
+        if (!job.isFinished()) {
+            boolean started = job.startedAt != null;
+            job.status = ExportJob.Status.CANCELLED;
+            if (job.future != null) {
+                job.future.cancel(true);
+            }
+            if (!started) {
+                job.permit.close();    // never runs; a running job releases it when it stops
+            }
+        }
+        deleteQuietly(job.file);
+        return true;
+    }
+
+    /** Drops jobs (and files) that finished more than the TTL ago, plus files no job owns any more. */
+    @Scheduled(fixedDelayString = "${dynamic.export.jobs.cleanup-interval-ms:60000}")
+    void cleanup() {
+        Instant cutoff = Instant.now().minusMillis(ttlMs);
+        for (ExportJob job : jobs.values()) {
+            if (job.isFinished() && job.finishedAt != null && job.finishedAt.isBefore(cutoff)) {
+                jobs.remove(job.id);
+                deleteQuietly(job.file);
+            }
+        }
+        // left behind by a previous run of the application
+        Set<Path> owned = new HashSet<>();
+        for (ExportJob job : jobs.values()) {
+            owned.add(job.file);
+            owned.add(partFile(job));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(f -> !owned.contains(f))
+                    .filter(f -> f.toFile().lastModified() < cutoff.toEpochMilli())
+                    .forEach(ExportJobService::deleteQuietly);
+        } catch (IOException e) {
+            log.warn("Could not clean up export directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    // =====================================================================
+    // Running a job
+    // =====================================================================
+
+    private void run(ExportJob job, GenericRequest request, List<String> fields) {
+        try (AdmissionControl.Permit permit = job.permit) {
+            if (job.status != ExportJob.Status.CANCELLED) {
+                runAdmitted(job, request, fields);
+            }
+        }
+    }
+
+    private void runAdmitted(ExportJob job, GenericRequest request, List<String> fields) {
+        job.status = ExportJob.Status.RUNNING;
+        job.startedAt = Instant.now();
+        QueryTrace trace = metrics.start("exportJob", request, RequestKeys.shape(request, fields));
+        trace.executed = true;
+        Path part = partFile(job);
+        try {
+            QueryPlan plan = genericQueryService.plan(request, fields);
+            job.totalRows = trace.time("count", () -> genericQueryService.countRows(plan, request));
+            List<long[]> ranges = chunkRanges(request, job.totalRows);
+            job.chunks = ranges.size();
+
+            ExcelStreamWriter.RowSource source = ranges.isEmpty()
+                    ? handler -> SqlCapture.capture(trace.statements,
+                            () -> exportRows(plan, request, counted(job, handler)))
+                    : handler -> readChunks(job, request, fields, ranges, counted(job, handler), trace);
+
+            long t0 = System.nanoTime();
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(part), 64 * 1024)) {
+                write(job.format, request.getEntity(), fields, plan, source, out);
+            }
+            trace.record("write", System.nanoTime() - t0);
+            Files.move(part, job.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            trace.rows = job.rowsWritten.get();
+            job.status = ExportJob.Status.DONE;
+        } catch (Exception e) {
+            deleteQuietly(part);
+            if (job.status != ExportJob.Status.CANCELLED) {
+                Throwable cause = e instanceof UncheckedIOException || e instanceof ExecutionException
+                        ? e.getCause() : e;
+                job.error = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+                job.status = ExportJob.Status.FAILED;
+                trace.failed = true;
+                log.warn("Export job {} ({}) failed: {}", job.id, job.entity, job.error);
+            }
+        } finally {
+            job.finishedAt = Instant.now();
+            metrics.finish(trace);
+        }
+    }
+
+    private void write(ExportFormat format,
+                       String entity,
+                       List<String> fields,
+                       QueryPlan plan,
+                       ExcelStreamWriter.RowSource source,
+                       OutputStream out) throws IOException {
+        switch (format) {
+            case CSV: {
+                CsvRowWriter writer = new CsvRowWriter(out, fields);
+                source.emit(writer);
+                writer.finish();
+                break;
+            }
+            case JSON: {
+                JsonRowWriter writer = new JsonRowWriter(objectMapper, out, plan.schema, true);
+                source.emit(writer);
+                writer.finish();
+                break;
+            }
+            case COLUMNAR: {
+                ColumnarRowWriter writer = new ColumnarRowWriter(out, fields, rowGroupSize);
+                source.emit(writer);
+                writer.finish();
+                break;
+            }
+            default:
+                new ExcelStreamWriter(rowWindow).write(entity, fields, source, out);
+        }
+    }
+
+    private long exportRows(QueryPlan plan, GenericRequest request, RowHandler handler) {
+        try {
+            return genericQueryService.exportRows(plan, request, handler);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Counts written rows for the progress report and stops the job once it is cancelled. */
+    private static RowHandler counted(ExportJob job, RowHandler handler) {
+        return values -> {
+            if (job.status == ExportJob.Status.CANCELLED) {
+                throw new InterruptedIOException("Export job cancelled");
+            }
+            handler.handle(values);
+            job.rowsWritten.incrementAndGet();
+        };
+    }
+
+    // =====================================================================
+    // Key-range chunks
+    // =====================================================================
+
+    /**
+     * Id ranges covering the entity, about chunk-rows (filtered) rows each, or none
+     * when the export should go through one cursor: small results, aggregates,
+     * distinct rows, a sort other than by id, a non-integral id, or an id range
+     * filter of the request's own.
+     */
+    private List<long[]> chunkRanges(GenericRequest request, Long total) {
+        if (total == null || total <= chunkRows || request.isAggregate() || request.isDistinct()) {
+            return Collections.emptyList();
+        }
+        String id = registry.entity(request.getEntity()).getIdAttribute();
+        Class<?> idType = ValueCoercion.box(genericQueryService.idType(request.getEntity()));
+        if (!(idType == Long.class || idType == Integer.class)
+                || !sortedById(request, id)
+                || (request.getFilters() != null && request.getFilters().containsKey(id + "_between"))) {
+            return Collections.emptyList();
+        }
+        long[] minMax = genericQueryService.idRange(request.getEntity());
+        if (minMax == null) {
+            return Collections.emptyList();
+        }
+        long span = minMax[1] - minMax[0] + 1;
+        long chunks = (total + chunkRows - 1) / chunkRows;
+        long step = (span + chunks - 1) / chunks;
+        List<long[]> ranges = new ArrayList<>();
+        for (long lo = minMax[0]; lo <= minMax[1]; lo += step) {
+            ranges.add(new long[]{lo, Math.min(lo + step - 1, minMax[1])});
+        }
+        return ranges;
+    }
+
+    /** No sort at all, or ascending by id only: the order chunks are written in. */
+    private static boolean sortedById(GenericRequest request, String id) {
+        List<SortSpec> sorts = request.getSorts();
+        if (sorts != null && !sorts.isEmpty()) {
+            return sorts.size() == 1 && id.equals(sorts.get(0).getField())
+                    && !"desc".equalsIgnoreCase(sorts.get(0).getDirection());
+        }
+        String sort = request.getSort();
+        if (sort == null || sort.isEmpty()) {
+            return true;
+        }
+        String[] parts = sort.split(",");
+        return id.equals(parts[0].trim()) && (parts.length < 2 || !"desc".equalsIgnoreCase(parts[1].trim()));
+    }
+
+    /** The request restricted to ids lo..hi (inclusive), ordered by id. */
+    private static GenericRequest chunkRequest(GenericRequest request, String id, long lo, long hi) {
+        GenericRequest chunk = new GenericRequest();
+        chunk.setEntity(request.getEntity());
+        chunk.setFields(request.getFields());
+        chunk.setFetch(request.getFetch());
+        chunk.setFetchMode(request.getFetchMode());
+        Map<String, Object> filters = request.getFilters() != null ? new HashMap<>(request.getFilters()) : new HashMap<>();
+        filters.put(id + "_between", Arrays.asList(lo, hi));
+        chunk.setFilters(filters);
+        chunk.setSorts(Collections.singletonList(new SortSpec(id, "asc")));
+        chunk.setExport(true);
+        return chunk;
+    }
+
+    /**
+     * Keeps up to chunk-parallelism range reads in flight and hands their rows to
+     * the writer strictly in range order, so the file comes out ordered by id.
+     */
+    private void readChunks(ExportJob job,
+                            GenericRequest request,
+                            List<String> fields,
+                            List<long[]> ranges,
+                            RowHandler handler,
+                            QueryTrace trace) throws IOException {
+        String id = registry.entity(request.getEntity()).getIdAttribute();
+        // every range has the same shape, so they all share one plan
+        QueryPlan plan = genericQueryService.plan(chunkRequest(request, id, 0, 0), fields);
+
+        Deque<Future<List<Object[]>>> window = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < ranges.size() && window.size() < chunkParallelism) {
+                window.add(readChunk(plan, chunkRequest(request, id, ranges.get(next)[0], ranges.get(next)[1]), trace));
+                next++;
+            }
+            while (!window.isEmpty()) {
+                List<Object[]> rows = window.poll().get();
+                if (next < ranges.size()) {
+                    window.add(readChunk(plan, chunkRequest(request, id, ranges.get(next)[0], ranges.get(next)[1]), trace));
+                    next++;
+                }
+                for (Object[] row : rows) {
+                    handler.handle(row);
+                }
+                job.chunksDone.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export job interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Reading an export chunk failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            for (Future<List<Object[]>> f : window) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private Future<List<Object[]>> readChunk(QueryPlan plan, GenericRequest chunk, QueryTrace trace) {
+        return chunkExecutor.submit(() -> trace.time("chunk",
+                () -> SqlCapture.capture(trace.statements, () -> genericQueryService.readRows(plan, chunk))));
+    }
+
+    /** Where a job writes until it is complete; renamed to the job's file at the end. */
+    private static Path partFile(ExportJob job) {
+        return job.file.resolveSibling(job.file.getFileName() + ".part");
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete export file {}: {}", file, e.getMessage());
+        }
+    }
+}
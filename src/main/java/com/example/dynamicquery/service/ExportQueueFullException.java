@@ -0,0 +1,13 @@
+package com.example.dynamicquery.service;
+
+/**
+ * Thrown by {@link ExportJobService#submit} when the export job queue is full.
+ * Mapped to 503 with Retry-After; other executor rejections are a generic
+ * "server busy".
+ */
+public class ExportQueueFullException extends RuntimeException {
+
+    public ExportQueueFullException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,20 +1,50 @@
 package com.example.dynamicquery.service;
 
 import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.dto.ProjectedRows;
+import com.example.dynamicquery.dto.GenericRequest.AggregateSpec;
 import com.example.dynamicquery.dto.GenericRequest.SortSpec;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import com.example.dynamicquery.model.Filterable;
+import com.example.dynamicquery.service.EntityRegistry.AttributePath;
+import com.example.dynamicquery.service.QueryPlan.Binding;
+import com.example.dynamicquery.service.QueryPlan.Kind;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.jpa.QueryHints;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ReflectionUtils;
 
+import javax.annotation.PostConstruct;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
-import java.io.FileOutputStream;
-import java.time.LocalDate;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Service
 public class GenericQueryService {
@@ -22,12 +52,698 @@ public class GenericQueryService {
     @PersistenceContext
     private EntityManager entityManager;
 
+    @Autowired
+    private EntityRegistry registry;
+
+    @Autowired
+    private QueryPlanCache planCache;
+
+    @Autowired
+    private CountCache countCache;
+
+    @Autowired
+    private ResultCache resultCache;
+
+    @Autowired
+    private SubqueryCache subqueryCache;
+
+    @Autowired
+    private SearchIndex searchIndex;
+
+    @Autowired
+    private SnapshotEngine snapshots;
+
+    @Autowired
+    private AdmissionControl admission;
+
+    @Autowired
+    private EntityChangeTracker changeTracker;
+
+    // change versions start at 0 again after a restart: keeps old ETags from matching
+    private final long startedAt = System.currentTimeMillis();
+
+    @Autowired
+    private QueryMetrics metrics;
+
+    // looked up lazily: export jobs read through this service
+    @Autowired
+    private ObjectProvider<ExportJobService> exportJobs;
+
+    /** Sort key for full-text relevance (needs a _search filter). */
+    static final String RANK = "_rank";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    @Qualifier("queryExecutor")
+    private ExecutorService queryExecutor;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private TransactionTemplate readOnlyTx;
+
+    @Value("${dynamic.query.count-timeout-ms:2000}")
+    private long countTimeoutMs;
+
+    @Value("${dynamic.export.fetch-size:500}")
+    private int exportFetchSize;
+
+    @Value("${dynamic.export.clear-interval:1000}")
+    private int exportClearInterval;
+
+    @Value("${dynamic.export.row-window:100}")
+    private int exportRowWindow;
+
+    @Value("${dynamic.query.batch-fetch-size:100}")
+    private int batchFetchSize;
+
+    @Value("${dynamic.query.subquery.inline-max-values:1000}")
+    private int inlineMaxValues;
+
+    @Value("${dynamic.query.statement-timeout-ms:30000}")
+    private int statementTimeoutMs;
+
+    @PostConstruct
+    void init() {
+        readOnlyTx = new TransactionTemplate(transactionManager);
+        readOnlyTx.setReadOnly(true);
+    }
+
+    /**
+     * Answers from the result cache when an identical request was served recently
+     * and none of the entities it read has changed since; otherwise runs it.
+     */
+    public Map<String, Object> fetchData(GenericRequest request) {
+
+        // -----------------------------------------------------------------
+        // Export mode: queued as an export job, polled for its file
+        // -----------------------------------------------------------------
+        if (request.isExport()) {
+            return exportJobs.getObject().submit(request);
+        }
+        return fetchData(request, () -> admission.admit(request));
+    }
+
+    /** A paged fetch admitted through {@code admit} rather than at its own estimated cost. */
+    Map<String, Object> fetchData(GenericRequest request, Supplier<AdmissionControl.Permit> admit) {
+        QueryTrace trace = metrics.start("fetch", request, RequestKeys.shape(request, request.getFields()));
+        try (AdmissionControl.Permit permit = trace.time("admission", admit)) {
+            Map<String, Object> resp;
+            if (snapshots.covers(request.getEntity())) {
+                List<String> columns = request.isAggregate()
+                        ? aggregateColumns(request)
+                        : projection(request, request.getFields());
+                resp = trace.time("snapshot", () -> snapshots.fetch(request, columns, sortSpecs(request)));
+                if (resp != null) {
+                    trace.snapshot = true;
+                    trace.rows = ((ProjectedRows) resp.get("content")).size();
+                    return resp;
+                }
+            }
+
+            Map<String, List<Object>> subqueries = subqueries(request, trace);
+            QueryPlan plan = plan(request, request.getFields(), subqueries, trace);
+            if (request.isExplain()) {
+                // always run: the point is to see what the database does with these statements
+                List<String> statements = trace.statements != null ? trace.statements : new CopyOnWriteArrayList<>();
+                resp = runFetch(plan, request, trace, statements, subqueries);
+                resp.put("explain", explain(statements));
+            } else {
+                resp = resultCache.get(RequestKeys.full(request), plan.entities,
+                        () -> runFetch(plan, request, trace, trace.statements, subqueries));
+            }
+            trace.rows = ((ProjectedRows) resp.get("content")).size();
+            return resp;
+        } catch (RuntimeException e) {
+            trace.failed = true;
+            throw e;
+        } finally {
+            metrics.finish(trace);
+        }
+    }
+
+    /**
+     * Weak ETag of the /dynamic/fetch response to {@code request}: a digest of the
+     * full request key and the change versions of every entity the query reads
+     * (joined and {@code _inSubquery} entities included). The entity list comes from
+     * the compiled plan, so nothing is read from the database. Take it before
+     * running the query: a write racing with the query then changes the tag rather
+     * than leaving new data under an old one. Null for exports and explain.
+     */
+    public String etag(GenericRequest request) {
+        if (request.isExport() || request.isExplain()) {
+            return null;
+        }
+        List<String> entities = planEntities(request);
+        StringBuilder sb = new StringBuilder(RequestKeys.full(request)).append("|t=").append(startedAt);
+        long[] versions = changeTracker.versions(entities);
+        for (int i = 0; i < versions.length; i++) {
+            sb.append('|').append(entities.get(i)).append('=').append(versions[i]);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return "W/\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 16)) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The entities a fetch reads. Subqueries are taken as EXISTS (which reads the
+     * same entities as the inlined form) so their values need not be looked up.
+     */
+    private List<String> planEntities(GenericRequest request) {
+        List<String> fields = request.getFields();
+        boolean subqueries = request.getFilters() != null
+                && request.getFilters().keySet().stream().anyMatch(k -> k.endsWith("_inSubquery"));
+        if (!subqueries) {
+            return plan(request, fields, Collections.emptyMap(), null).entities;
+        }
+        return planCache.get(RequestKeys.shape(request, fields) + "|entities",
+                () -> compilePlan(request, fields, Collections.emptySet(), 1)).entities;
+    }
+
+    /**
+     * Runs the page query on the calling thread and the count query on the query
+     * executor, each in its own read-only transaction (and so on its own
+     * connection). A count that does not finish within the count timeout is
+     * cancelled and the page is returned without a total.
+     */
+    private Map<String, Object> runFetch(QueryPlan plan, GenericRequest request, QueryTrace trace,
+                                         List<String> statements, Map<String, List<Object>> subqueries) {
+        trace.executed = true;
+        Object[] cursorKeys = plan.isKeyset() && request.getCursor() != null
+                ? KeysetCursor.decode(request.getCursor(), plan.keySignature, plan.keyTypes)
+                : null;
+
+        long started = System.currentTimeMillis();
+        Future<Long> countFuture = "none".equalsIgnoreCase(request.getCountMode())
+                ? null
+                : queryExecutor.submit(() -> trace.time("count", () -> SqlCapture.capture(statements,
+                        () -> readOnlyTx.execute(s -> countTotal(plan, request)))));
+
+        // one extra row tells us whether there is a next page when no total is available
+        List<Tuple> fetched = trace.time("execute", () -> SqlCapture.capture(statements, () -> readOnlyTx.execute(s -> {
+            TypedQuery<Tuple> query = timed(plan.bind(entityManager.createQuery(plan.dataQuery), request));
+            if (plan.isKeyset()) {
+                // seek past the last row of the previous page
+                if (cursorKeys != null) {
+                    plan.bindCursor(query, cursorKeys);
+                }
+            } else {
+                query.setFirstResult(request.getPage() * request.getSize());
+            }
+            query.setMaxResults(request.getSize() + 1);
+            return query.getResultList();
+        })));
+
+        boolean hasNext = fetched.size() > request.getSize();
+        List<Tuple> tuples = hasNext ? fetched.subList(0, request.getSize()) : fetched;
+        // -----------------------------------------------------------------
+        // Map results: one value array per row, schema shared with the plan
+        // -----------------------------------------------------------------
+        long mapStart = System.nanoTime();
+        List<Object[]> rows = new ArrayList<>(tuples.size());
+        for (Tuple t : tuples) {
+            rows.add(plan.values(t));
+        }
+        trace.record("map", System.nanoTime() - mapStart);
+        if (!plan.batchFetches.isEmpty() && !rows.isEmpty()) {
+            trace.time("batchFetch", () -> SqlCapture.capture(statements, () -> readOnlyTx.execute(s -> {
+                batchFetch(plan, rows);
+                return null;
+            })));
+        }
+        ProjectedRows data = new ProjectedRows(plan.schema, rows, request.isColumnar());
+
+        // -----------------------------------------------------------------
+        // Count total (exact, cached or skipped; bounded by the count timeout)
+        // -----------------------------------------------------------------
+        Long total = null;
+        boolean countTimedOut = false;
+        if (countFuture != null) {
+            try {
+                long remaining = countTimeoutMs - (System.currentTimeMillis() - started);
+                total = countFuture.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                countFuture.cancel(true);
+                countTimedOut = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                countFuture.cancel(true);
+                countTimedOut = true;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IllegalStateException("Count query failed", e.getCause());
+            }
+        }
+
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("content", data);
+        resp.put("size", request.getSize());
+        if (total != null) {
+            resp.put("totalElements", total);
+        }
+        if (plan.isKeyset()) {
+            resp.put("nextCursor", hasNext ? nextCursor(plan, tuples.get(tuples.size() - 1)) : null);
+        } else {
+            resp.put("page", request.getPage());
+            if (total != null) {
+                resp.put("totalPages", (int) Math.ceil((double) total / request.getSize()));
+            }
+        }
+        if (total == null || plan.isKeyset()) {
+            resp.put("hasNext", hasNext);
+        }
+        if (countTimedOut) {
+            resp.put("countTimedOut", true);
+        }
+        if (plan.searchTruncated()) {
+            resp.put("searchTruncated", true);
+        }
+        if (!subqueries.isEmpty()) {
+            resp.put("subqueries", subqueryDiagnostics(subqueries));
+        }
+        return resp;
+    }
+
+    private Long countTotal(QueryPlan plan, GenericRequest request) {
+        if ("cached".equalsIgnoreCase(request.getCountMode())) {
+            return countCache.get(RequestKeys.count(request), plan.entities, () -> runCount(plan, request));
+        }
+        return runCount(plan, request);
+    }
+
+    Long runCount(QueryPlan plan, GenericRequest request) {
+        TypedQuery<Long> q = plan.bindCount(entityManager.createQuery(plan.countQuery), request);
+        // let the database cancel the statement too, not just stop waiting for it
+        q.setHint(QueryHints.SPEC_HINT_TIMEOUT, (int) countTimeoutMs);
+        if (plan.grouped) {
+            // one (tiny) row per group that survives HAVING
+            return (long) q.getResultList().size();
+        }
+        return q.getSingleResult();
+    }
+
+    /**
+     * Has the database cancel the statement once it runs past the statement timeout
+     * (JDBC query timeout), so the connection and the request thread are freed.
+     * Streaming and export reads are long by design and are left unbounded.
+     */
+    private <Q extends Query> Q timed(Q query) {
+        if (statementTimeoutMs > 0) {
+            query.setHint(QueryHints.SPEC_HINT_TIMEOUT, statementTimeoutMs);
+        }
+        return query;
+    }
+
+    private String nextCursor(QueryPlan plan, Tuple last) {
+        Object[] keys = new Object[plan.keyIndexes.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = last.get(plan.keyIndexes[i]);
+        }
+        return KeysetCursor.encode(keys, plan.keySignature);
+    }
+
+    /**
+     * The database's plan for each captured statement, plus the indexes (or table
+     * scans) it picked. Parameters are bound as NULL: H2 chooses indexes when the
+     * statement is prepared, before values are known.
+     */
+    private List<Map<String, Object>> explain(List<String> statements) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        for (String sql : new LinkedHashSet<>(statements)) {
+            String plan = jdbcTemplate.execute((Connection c) -> {
+                try (PreparedStatement ps = c.prepareStatement("EXPLAIN " + sql)) {
+                    int n = ps.getParameterMetaData().getParameterCount();
+                    for (int i = 1; i <= n; i++) {
+                        ps.setNull(i, Types.NULL);
+                    }
+                    StringBuilder sb = new StringBuilder();
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) sb.append(rs.getString(1));
+                    }
+                    return sb.toString();
+                }
+            });
+            List<String> access = new ArrayList<>();
+            Matcher m = PLAN_ACCESS.matcher(plan);
+            while (m.find()) {
+                access.add(m.group(1));
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("sql", sql.replaceAll("\\s+", " ").trim());
+            entry.put("access", access);
+            entry.put("plan", plan);
+            out.add(entry);
+        }
+        return out;
+    }
+
+    // H2 annotates each table in the plan with the index it reads: /* PUBLIC.IDX_...: cond */ or /* PUBLIC.T.tableScan */
+    private static final Pattern PLAN_ACCESS = Pattern.compile("/\\*\\s*(\\w+\\.[\\w.]+)");
+
+    /**
+     * Streams the full (unpaged) result of the request as an xlsx workbook into
+     * {@code out}. Rows are read through a forward-only cursor and written through
+     * a windowed streaming workbook, so heap usage does not depend on result size.
+     */
     @Transactional(readOnly = true)
-    public Map<String, Object> fetchData(GenericRequest request) throws ClassNotFoundException {
+    public void exportExcel(GenericRequest request, OutputStream out) throws IOException {
+        List<String> fields = exportFields(request);
+        traced("export", request, fields, (plan, trace) -> {
+            long[] rows = new long[1];
+            new ExcelStreamWriter(exportRowWindow).write(
+                    request.getEntity(), fields, handler -> rows[0] = streamRows(plan, request, handler), out);
+            return rows[0];
+        });
+    }
+
+    /**
+     * Streams the full (unpaged) result as JSON while it is being read: one object
+     * per line for NDJSON, otherwise a single chunked JSON array. Memory stays
+     * constant since rows go from the cursor straight to the response.
+     */
+    @Transactional(readOnly = true)
+    public void streamJson(GenericRequest request, OutputStream out, boolean ndjson)
+            throws IOException {
+        traced("stream", request, exportFields(request), (plan, trace) -> {
+            JsonRowWriter writer = new JsonRowWriter(objectMapper, out, plan.schema, ndjson);
+            long rows = streamRows(plan, request, writer);
+            writer.finish();
+            return rows;
+        });
+    }
+
+    /** Body of a streamed export: writes every row of the plan, returns the row count. */
+    @FunctionalInterface
+    private interface StreamedWork {
+        long run(QueryPlan plan, QueryTrace trace) throws IOException;
+    }
+
+    /**
+     * Plans the request and runs {@code work} under a trace: the whole write
+     * (reading included, since rows stream straight through) is one phase named
+     * after the endpoint.
+     */
+    private void traced(String endpoint, GenericRequest request, List<String> fields, StreamedWork work)
+            throws IOException {
+        QueryTrace trace = metrics.start(endpoint, request, RequestKeys.shape(request, fields));
+        trace.executed = true;
+        try {
+            QueryPlan plan = plan(request, fields, trace);
+            long t0 = System.nanoTime();
+            trace.rows = SqlCapture.capture(trace.statements, () -> {
+                try {
+                    return work.run(plan, trace);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            trace.record(endpoint, System.nanoTime() - t0);
+        } catch (UncheckedIOException e) {
+            trace.failed = true;
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            trace.failed = true;
+            throw e;
+        } finally {
+            metrics.finish(trace);
+        }
+    }
+
+    /**
+     * Columns written by an export or stream: the same columns a page of the
+     * request has (see {@link #projection}), or groupBy columns followed by
+     * aggregate aliases for aggregate requests.
+     */
+    public List<String> exportFields(GenericRequest request) {
+        if (request.isAggregate()) {
+            return aggregateColumns(request);
+        }
+        return projection(request, request.getFields());
+    }
+
+    /**
+     * Columns of a non-aggregate request: the requested fields, or the entity's
+     * flat projection (basic attributes plus the id of each to-one association)
+     * when none were requested, followed by every basic attribute of each
+     * association listed in {@code fetch}. Rows only ever hold plain values, so
+     * no lazy proxy reaches serialization.
+     */
+    List<String> projection(GenericRequest request, List<String> fields) {
+        EntityRegistry.EntityInfo info = registry.entity(request.getEntity());
+        List<String> columns = new ArrayList<>(fields != null && !fields.isEmpty() ? fields : info.getFlatAttributes());
+        if (request.getFetch() != null) {
+            for (String assoc : request.getFetch()) {
+                for (String attr : fetchTarget(info, assoc).getBasicAttributes()) {
+                    String column = assoc + "." + attr;
+                    if (!columns.contains(column)) {
+                        columns.add(column);
+                    }
+                }
+            }
+        }
+        return columns;
+    }
+
+    private EntityRegistry.EntityInfo fetchTarget(EntityRegistry.EntityInfo info, String assoc) {
+        AttributePath ap = info.path(assoc);
+        if (!ap.association) {
+            throw new IllegalArgumentException("Cannot fetch " + assoc + ": not an association of " + info.getName());
+        }
+        return registry.entity(ap.javaType);
+    }
+
+    // =====================================================================
+    // Query plans (compiled once per request shape, values bound per call)
+    // =====================================================================
+    QueryPlan plan(GenericRequest request, List<String> fields) {
+        return plan(request, fields, null);
+    }
 
-        Class<?> entityClass = Class.forName("com.example.dynamicquery.model." + request.getEntity());
+    private QueryPlan plan(GenericRequest request, List<String> fields, QueryTrace trace) {
+        return plan(request, fields, subqueries(request, trace), trace);
+    }
+
+    /**
+     * Compilation (criteria build) only happens on a plan-cache miss; that is what the
+     * plan phase times. The subquery strategies are part of the cache key: an inlined
+     * subquery and an EXISTS compile to different SQL. A plan with inlined subqueries
+     * comes back carrying the values they were decided on; once a subquery outgrows
+     * the limit, the next request picks the EXISTS plan. Each {@code _search} filter
+     * is searched here, once, and its hits travel with the plan the same way; a
+     * relevance sort's width (see {@link #rankExpression}) is part of the key.
+     */
+    private QueryPlan plan(GenericRequest request, List<String> fields, Map<String, List<Object>> subqueries,
+                           QueryTrace trace) {
+        String shape = trace != null ? trace.shape : RequestKeys.shape(request, fields);
+        Set<String> inlined = inlinedPaths(subqueries);
+        Map<String, SearchIndex.Hits> searches = new HashMap<>();
+        collectSearches(request.getEntity(), request.getFilters(), "", inlined, searches, trace);
+        int rankWidth = rankWidth(request, searches);
+        String key = RequestKeys.withSubqueries(shape, subqueries.keySet(), inlined) + (rankWidth > 0 ? "|rank=" + rankWidth : "");
+        QueryPlan plan = planCache.get(key, () -> trace != null
+                ? trace.time("plan", () -> compilePlan(request, fields, inlined, rankWidth))
+                : compilePlan(request, fields, inlined, rankWidth));
+        return inlined.isEmpty() && searches.isEmpty() ? plan : plan.withRequestValues(subqueries, searches);
+    }
 
+    // package-private, like plan() and runCount(), so the benchmarks can time each stage alone
+    QueryPlan compilePlan(GenericRequest request, List<String> fields) {
+        return compilePlan(request, fields, inlinedPaths(subqueries(request, null)), searchIndex.getMaxHits());
+    }
+
+    private QueryPlan compilePlan(GenericRequest request, List<String> fields, Set<String> inlined, int rankWidth) {
+        Class<?> entityClass = registry.entity(request.getEntity()).getJavaType();
         CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        PlanContext ctx = new PlanContext();
+        ctx.inlined = inlined;
+        ctx.rankWidth = rankWidth;
+        List<String> planFields = fields != null ? fields : Collections.emptyList();
+
+        boolean keyset = request.isKeyset() && !request.isExport();
+        boolean grouped = request.isAggregate();
+        CriteriaQuery<Tuple> dataQuery;
+        CriteriaQuery<Long> countQuery;
+        List<SortSpec> sorts;
+        int[] tupleIndexes = null;
+        List<QueryPlan.BatchFetch> batchFetches = new ArrayList<>();
+        if (grouped) {
+            if (keyset) {
+                throw new IllegalArgumentException("Keyset pagination is not supported for groupBy/aggregates");
+            }
+            if (request.getFields() != null && !request.getFields().isEmpty()) {
+                throw new IllegalArgumentException("Use groupBy instead of fields with aggregates");
+            }
+            planFields = aggregateColumns(request);
+            sorts = sortSpecs(request);
+            dataQuery = buildAggregateQuery(cb, entityClass, request, sorts, ctx);
+            countQuery = buildGroupCountQuery(cb, entityClass, request, ctx);
+        } else {
+            planFields = projection(request, planFields);
+            List<String> selected = planFields;
+            // DISTINCT has to see every output column, so it always joins
+            if (request.isBatchFetch() && !request.isDistinct() && request.getFetch() != null) {
+                selected = planBatchFetches(request, planFields, batchFetches);
+                tupleIndexes = new int[planFields.size()];
+                for (int i = 0; i < tupleIndexes.length; i++) {
+                    tupleIndexes[i] = selected.indexOf(planFields.get(i));
+                }
+            }
+            sorts = keyset ? keysetSorts(entityClass, request, planFields) : sortSpecs(request);
+            dataQuery = buildTupleQuery(cb, entityClass, request, selected, sorts, keyset, ctx);
+            countQuery = buildCountQuery(cb, entityClass, request, ctx);
+        }
+
+        // render once on this thread so aliases are assigned before the plan is shared
+        entityManager.createQuery(dataQuery);
+        entityManager.createQuery(countQuery);
+
+        for (Root<?> root : dataQuery.getRoots()) {
+            collectEntities(root, ctx.entities);
+        }
+        return new QueryPlan(entityClass, planFields, dataQuery, countQuery, ctx.bindings,
+                new ArrayList<>(ctx.entities), grouped,
+                ctx.keyIndexes, ctx.keyTypes, keyset ? KeysetCursor.signature(sortShape(sorts)) : null,
+                ctx.seekParams, tupleIndexes, batchFetches);
+    }
+
+    /**
+     * Batch fetch mode: every column of a fetched association except its id (read
+     * from the foreign key) leaves the page query and is loaded afterwards by an
+     * IN-list query per batch of distinct keys. Adds one load per association to
+     * {@code out}; returns the columns the page query still selects.
+     */
+    private List<String> planBatchFetches(GenericRequest request, List<String> columns,
+                                          List<QueryPlan.BatchFetch> out) {
+        EntityRegistry.EntityInfo info = registry.entity(request.getEntity());
+        Set<String> deferred = new HashSet<>();
+        for (String assoc : request.getFetch()) {
+            EntityRegistry.EntityInfo target = fetchTarget(info, assoc);
+            String id = target.getIdAttribute();
+            StringBuilder jpql = new StringBuilder("select e.").append(id);
+            List<Integer> filled = new ArrayList<>();
+            for (String attr : target.getBasicAttributes()) {
+                String column = assoc + "." + attr;
+                if (attr.equals(id) || !deferred.add(column)) continue;
+                jpql.append(", e.").append(attr);
+                filled.add(columns.indexOf(column));
+            }
+            if (filled.isEmpty()) continue;
+            jpql.append(" from ").append(target.getJavaType().getName())
+                    .append(" e where e.").append(id).append(" in :ids");
+            out.add(new QueryPlan.BatchFetch(jpql.toString(), columns.indexOf(assoc + "." + id),
+                    filled.stream().mapToInt(Integer::intValue).toArray()));
+        }
+        List<String> selected = new ArrayList<>();
+        for (String c : columns) {
+            if (!deferred.contains(c)) {
+                selected.add(c);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Fills the batch-fetched columns of {@code rows}: one query per association and
+     * batch of up to batch-fetch-size distinct keys. Needs a transaction.
+     */
+    private void batchFetch(QueryPlan plan, List<Object[]> rows) {
+        for (QueryPlan.BatchFetch fetch : plan.batchFetches) {
+            Map<Object, List<Object[]>> byKey = new LinkedHashMap<>();
+            for (Object[] row : rows) {
+                Object key = row[fetch.keyColumn];
+                if (key != null) {
+                    byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(row);
+                }
+            }
+            List<Object> keys = new ArrayList<>(byKey.keySet());
+            for (int from = 0; from < keys.size(); from += batchFetchSize) {
+                List<Object[]> loaded = timed(entityManager.createQuery(fetch.query, Object[].class))
+                        .setParameter("ids", keys.subList(from, Math.min(keys.size(), from + batchFetchSize)))
+                        .setHint(QueryHints.HINT_READONLY, true)
+                        .getResultList();
+                for (Object[] values : loaded) {
+                    for (Object[] row : byKey.get(values[0])) {
+                        for (int i = 0; i < fetch.columns.length; i++) {
+                            row[fetch.columns[i]] = values[i + 1];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Root and joined entity names reachable from a FROM clause. */
+    private static void collectEntities(From<?, ?> from, Set<String> out) {
+        out.add(from.getJavaType().getSimpleName());
+        for (Join<?, ?> join : from.getJoins()) {
+            collectEntities(join, out);
+        }
+    }
+
+    /** Parameters created while compiling; data and count queries share them. */
+    private static final class PlanContext {
+        final Map<String, ParameterExpression<?>> params = new HashMap<>();
+        final List<Binding> bindings = new ArrayList<>();
+        final List<ParameterExpression<?>> seekParams = new ArrayList<>();
+        final Set<String> entities = new LinkedHashSet<>();
+        int[] keyIndexes;
+        Class<?>[] keyTypes;
+        SearchFilter search;        // first top-level _search filter: what "_rank" sorts by
+        int rankWidth;              // hit positions the "_rank" CASE compares against
+        Set<String> inlined = Collections.emptySet();   // paths of _inSubquery filters bound as IN lists
+
+        <T> ParameterExpression<T> param(CriteriaBuilder cb, List<String> path, Kind kind, Class<T> type) {
+            return param(cb, path, kind, type, false, 0);
+        }
+
+        <T> ParameterExpression<T> param(CriteriaBuilder cb, List<String> path, Kind kind, Class<T> type,
+                                         boolean having) {
+            return param(cb, path, kind, type, having, 0);
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> ParameterExpression<T> param(CriteriaBuilder cb, List<String> path, Kind kind, Class<T> type,
+                                         boolean having, int position) {
+            String key = (having ? "having:" : "") + String.join("/", path) + "#" + kind + "@" + position;
+            ParameterExpression<?> p = params.get(key);
+            if (p == null) {
+                p = cb.parameter(type);
+                params.put(key, p);
+                bindings.add(new Binding(p, path, kind, type, having, position));
+            }
+            return (ParameterExpression<T>) p;
+        }
+    }
+
+    /** A full-text filter: the id path it restricts and the filter path its hits are pinned under. */
+    private static final class SearchFilter {
+        final Path<?> idPath;
+        final List<String> path;
+
+        SearchFilter(Path<?> idPath, List<String> path) {
+            this.idPath = idPath;
+            this.path = path;
+        }
+    }
+
+    // =====================================================================
+    // Query construction (projection + filters + sorting)
+    // =====================================================================
+    private CriteriaQuery<Tuple> buildTupleQuery(CriteriaBuilder cb,
+                                                 Class<?> entityClass,
+                                                 GenericRequest request,
+                                                 List<String> fields,
+                                                 List<SortSpec> sorts,
+                                                 boolean keyset,
+                                                 PlanContext ctx) {
         CriteriaQuery<Tuple> cq = cb.createTupleQuery();
         Root<?> root = cq.from(entityClass);
 
@@ -38,33 +754,42 @@ public class GenericQueryService {
             cq.distinct(true);
         }
 
-        boolean hasFields = request.getFields() != null && !request.getFields().isEmpty();
-        boolean singleFieldDistinct = request.isDistinct() && hasFields && request.getFields().size() == 1;
-
         // -----------------------------------------------------------------
         // Projections (using only multiselect)
         // -----------------------------------------------------------------
-        if (singleFieldDistinct) {
-            String f = request.getFields().get(0);
-            Path<?> p = getPath(root, f, joins);
-            cq.multiselect(p.alias(f));           // tuple of size 1
-
-        } else if (!hasFields) {
-            cq.multiselect(root);                 // tuple[0] = entity
+        List<Selection<?>> selections = new ArrayList<>();
+        for (String field : fields) {
+            Path<?> p = getPath(root, field, joins);
+            selections.add(p.alias(field));
+        }
 
-        } else {
-            List<Selection<?>> selections = new ArrayList<>();
-            for (String field : request.getFields()) {
+        // Keyset: sort keys not already projected ride along as hidden trailing columns
+        List<Path<?>> keyPaths = new ArrayList<>();
+        if (keyset) {
+            ctx.keyIndexes = new int[sorts.size()];
+            ctx.keyTypes = new Class<?>[sorts.size()];
+            for (int i = 0; i < sorts.size(); i++) {
+                String field = sorts.get(i).getField();
                 Path<?> p = getPath(root, field, joins);
-                selections.add(p.alias(field));
+                int idx = fields.indexOf(field);
+                if (idx < 0) {
+                    selections.add(p.alias("__key" + i));
+                    idx = selections.size() - 1;
+                }
+                keyPaths.add(p);
+                ctx.keyIndexes[i] = idx;
+                ctx.keyTypes[i] = ValueCoercion.box(p.getJavaType());
             }
-            cq.multiselect(selections);
         }
+        cq.multiselect(selections);
 
         // -----------------------------------------------------------------
         // Filters
         // -----------------------------------------------------------------
-        List<Predicate> predicates = buildPredicates(cb, root, joins, request.getFilters());
+        List<Predicate> predicates = buildPredicates(cb, root, joins, request.getFilters(), ctx, Collections.emptyList());
+        if (keyset && request.getCursor() != null) {
+            predicates.add(seekPredicate(cb, keyPaths, sorts, registry.entity(entityClass).getIdAttribute(), ctx));
+        }
         if (!predicates.isEmpty()) {
             cq.where(predicates.toArray(new Predicate[0]));
         }
@@ -72,80 +797,149 @@ public class GenericQueryService {
         // -----------------------------------------------------------------
         // Sorting
         // -----------------------------------------------------------------
-        List<Order> orders = buildOrders(cb, root, joins, request);
+        List<Order> orders = buildOrders(cb, root, joins, sorts, ctx);
         if (!orders.isEmpty()) {
             cq.orderBy(orders);
         }
+        return cq;
+    }
 
-        TypedQuery<Tuple> query = entityManager.createQuery(cq);
+    // =====================================================================
+    // Keyset (seek) pagination
+    // =====================================================================
 
-        if (!request.isExport()) {
-            query.setFirstResult(request.getPage() * request.getSize());
-            query.setMaxResults(request.getSize());
+    /**
+     * The requested ordering plus a unique tie-breaker: the id for plain queries,
+     * or the projected fields themselves for DISTINCT queries (where an id
+     * column would change the result).
+     */
+    private List<SortSpec> keysetSorts(Class<?> entityClass, GenericRequest request, List<String> fields) {
+        List<SortSpec> sorts = new ArrayList<>(sortSpecs(request));
+        List<String> tieBreakers;
+        if (request.isDistinct() && !fields.isEmpty()) {
+            tieBreakers = fields;
+        } else {
+            tieBreakers = Collections.singletonList(registry.entity(entityClass).getIdAttribute());
+        }
+        for (String f : tieBreakers) {
+            if (sorts.stream().noneMatch(s -> s.getField().equals(f))) {
+                sorts.add(new SortSpec(f, "asc"));
+            }
         }
+        return sorts;
+    }
 
-        List<Tuple> tuples = query.getResultList();
-        List<Map<String, Object>> data = new ArrayList<>();
+    /**
+     * (k0 > v0) OR (k0 = v0 AND k1 > v1) OR ... with the comparison flipped for
+     * descending keys, so the query starts right after the cursor row. Keys that can
+     * be null (anything but the root id) follow H2's ordering, where NULL sorts
+     * lowest: first ascending, last descending. Their comparisons also cover a null
+     * cursor value or a null column.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Predicate seekPredicate(CriteriaBuilder cb,
+                                    List<Path<?>> keyPaths,
+                                    List<SortSpec> sorts,
+                                    String idField,
+                                    PlanContext ctx) {
+        List<ParameterExpression<Comparable>> params = new ArrayList<>();
+        for (int i = 0; i < keyPaths.size(); i++) {
+            ParameterExpression<Comparable> p = cb.parameter((Class<Comparable>) ctx.keyTypes[i]);
+            ctx.seekParams.add(p);
+            params.add(p);
+        }
 
-        // -----------------------------------------------------------------
-        // Map results
-        // -----------------------------------------------------------------
-        if (!hasFields) {
-            for (Tuple t : tuples) {
-                Map<String, Object> row = new LinkedHashMap<>();
-                row.put("entity", t.get(0));
-                data.add(row);
+        List<Predicate> disjuncts = new ArrayList<>();
+        for (int i = 0; i < keyPaths.size(); i++) {
+            List<Predicate> conj = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                Expression<Comparable> key = (Expression<Comparable>) keyPaths.get(j);
+                Predicate equal = cb.equal(key, params.get(j));
+                conj.add(idField.equals(sorts.get(j).getField())
+                        ? equal
+                        : cb.or(equal, cb.and(cb.isNull(params.get(j)), cb.isNull(key))));
             }
-        } else if (singleFieldDistinct) {
-            String f = request.getFields().get(0);
-            for (Tuple t : tuples) {
-                Map<String, Object> row = new LinkedHashMap<>();
-                row.put(f, t.get(f));
-                data.add(row);
-            }
-        } else {
-            for (Tuple t : tuples) {
-                Map<String, Object> row = new LinkedHashMap<>();
-                for (String f : request.getFields()) {
-                    row.put(f, t.get(f));
-                }
-                data.add(row);
+            Expression<Comparable> key = (Expression<Comparable>) keyPaths.get(i);
+            ParameterExpression<Comparable> value = params.get(i);
+            boolean desc = isDesc(sorts.get(i));
+            Predicate after = desc ? cb.lessThan(key, value) : cb.greaterThan(key, value);
+            if (!idField.equals(sorts.get(i).getField())) {
+                // ascending: every value follows a null cursor; descending: nulls follow every value
+                after = cb.or(after, desc
+                        ? cb.and(cb.isNotNull(value), cb.isNull(key))
+                        : cb.and(cb.isNull(value), cb.isNotNull(key)));
             }
+            conj.add(after);
+            disjuncts.add(cb.and(conj.toArray(new Predicate[0])));
         }
+        return cb.or(disjuncts.toArray(new Predicate[0]));
+    }
 
-        // -----------------------------------------------------------------
-        // Count total
-        // -----------------------------------------------------------------
-        Long total = countTotal(cb, entityClass, request);
+    private static String sortShape(List<SortSpec> sorts) {
+        StringBuilder sb = new StringBuilder();
+        for (SortSpec s : sorts) {
+            sb.append(s.getField()).append(isDesc(s) ? ":desc" : ":asc").append(',');
+        }
+        return sb.toString();
+    }
 
-        // -----------------------------------------------------------------
-        // Export mode
-        // -----------------------------------------------------------------
-        if (request.isExport()) {
-            return exportAsExcel(data, request.getEntity(), request.getFields());
+    // =====================================================================
+    // Cursor read: forward-only, fetch-size hinted, context cleared as we go
+    // =====================================================================
+    private long streamRows(QueryPlan plan,
+                            GenericRequest request,
+                            RowHandler handler) throws IOException {
+        TypedQuery<Tuple> query = plan.bind(entityManager.createQuery(plan.dataQuery), request);
+        query.setHint(QueryHints.HINT_FETCH_SIZE, exportFetchSize);
+        query.setHint(QueryHints.HINT_READONLY, true);
+
+        // with batch fetching, rows wait in a buffer until their associations are loaded
+        List<Object[]> pending = plan.batchFetches.isEmpty() ? null : new ArrayList<>(batchFetchSize);
+        long count = 0;
+        try (Stream<Tuple> stream = query.getResultStream()) {
+            Iterator<Tuple> it = stream.iterator();
+            while (it.hasNext()) {
+                Object[] row = plan.values(it.next());
+                if (pending == null) {
+                    handler.handle(row);
+                } else {
+                    pending.add(row);
+                    if (pending.size() == batchFetchSize) {
+                        flush(plan, pending, handler);
+                    }
+                }
+                if (++count % exportClearInterval == 0) {
+                    entityManager.clear();
+                }
+            }
+        }
+        if (pending != null && !pending.isEmpty()) {
+            flush(plan, pending, handler);
         }
+        return count;
+    }
 
-        Map<String, Object> resp = new HashMap<>();
-        resp.put("content", data);
-        resp.put("totalElements", total);
-        resp.put("page", request.getPage());
-        resp.put("size", request.getSize());
-        resp.put("totalPages", (int) Math.ceil((double) total / request.getSize()));
-        return resp;
+    private void flush(QueryPlan plan, List<Object[]> pending, RowHandler handler) throws IOException {
+        batchFetch(plan, pending);
+        for (Object[] row : pending) {
+            handler.handle(row);
+        }
+        pending.clear();
     }
 
     // =====================================================================
     // Count query
     // =====================================================================
-    private Long countTotal(CriteriaBuilder cb,
-                            Class<?> entityClass,
-                            GenericRequest request) throws ClassNotFoundException {
+    private CriteriaQuery<Long> buildCountQuery(CriteriaBuilder cb,
+                                                Class<?> entityClass,
+                                                GenericRequest request,
+                                                PlanContext ctx) {
 
         CriteriaQuery<Long> countQ = cb.createQuery(Long.class);
         Root<?> countRoot = countQ.from(entityClass);
         Map<String, From<?, ?>> joins = new HashMap<>();
 
-        List<Predicate> preds = buildPredicates(cb, countRoot, joins, request.getFilters());
+        List<Predicate> preds = buildPredicates(cb, countRoot, joins, request.getFilters(), ctx, Collections.emptyList());
         if (!preds.isEmpty()) {
             countQ.where(preds.toArray(new Predicate[0]));
         }
@@ -162,17 +956,241 @@ public class GenericQueryService {
             countQ.select(cb.count(countRoot));
         }
 
-        return entityManager.createQuery(countQ).getSingleResult();
+        return countQ;
     }
 
     // =====================================================================
-    // Filters: equals, _like, _between, _inSubquery
+    // Aggregates: GROUP BY columns + count/sum/avg/min/max/countDistinct,
+    // HAVING on aggregate aliases, ORDER BY alias or group column
+    // =====================================================================
+    private static List<String> aggregateColumns(GenericRequest request) {
+        List<String> columns = new ArrayList<>();
+        if (request.getGroupBy() != null) {
+            columns.addAll(request.getGroupBy());
+        }
+        if (request.getAggregates() != null) {
+            for (AggregateSpec a : request.getAggregates()) {
+                if (columns.contains(a.getAlias())) {
+                    throw new IllegalArgumentException("Duplicate column '" + a.getAlias() + "'");
+                }
+                columns.add(a.getAlias());
+            }
+        }
+        return columns;
+    }
+
+    private CriteriaQuery<Tuple> buildAggregateQuery(CriteriaBuilder cb,
+                                                     Class<?> entityClass,
+                                                     GenericRequest request,
+                                                     List<SortSpec> sorts,
+                                                     PlanContext ctx) {
+        CriteriaQuery<Tuple> cq = cb.createTupleQuery();
+        Root<?> root = cq.from(entityClass);
+        Map<String, From<?, ?>> joins = new HashMap<>();
+
+        Map<String, Expression<?>> groups = groupExpressions(root, joins, request);
+        Map<String, Expression<?>> aggregates = aggregateExpressions(cb, root, joins, request);
+
+        List<Selection<?>> selections = new ArrayList<>();
+        groups.forEach((name, e) -> selections.add(e.alias(name)));
+        aggregates.forEach((alias, e) -> selections.add(e.alias(alias)));
+        cq.multiselect(selections);
+
+        applyGrouping(cb, cq, root, joins, request, groups, aggregates, ctx);
+
+        List<Order> orders = new ArrayList<>();
+        for (SortSpec spec : sorts) {
+            Expression<?> e = aggregates.containsKey(spec.getField())
+                    ? aggregates.get(spec.getField())
+                    : groups.get(spec.getField());
+            if (e == null) {
+                throw new IllegalArgumentException("Cannot sort grouped results by '" + spec.getField()
+                        + "': use a groupBy field or an aggregate alias");
+            }
+            orders.add(isDesc(spec) ? cb.desc(e) : cb.asc(e));
+        }
+        if (!orders.isEmpty()) {
+            cq.orderBy(orders);
+        }
+        return cq;
+    }
+
+    /** Same grouping, filters and HAVING; yields one count per surviving group. */
+    private CriteriaQuery<Long> buildGroupCountQuery(CriteriaBuilder cb,
+                                                     Class<?> entityClass,
+                                                     GenericRequest request,
+                                                     PlanContext ctx) {
+        CriteriaQuery<Long> cq = cb.createQuery(Long.class);
+        Root<?> root = cq.from(entityClass);
+        Map<String, From<?, ?>> joins = new HashMap<>();
+        cq.select(cb.count(root));
+        applyGrouping(cb, cq, root, joins, request,
+                groupExpressions(root, joins, request), aggregateExpressions(cb, root, joins, request), ctx);
+        return cq;
+    }
+
+    private void applyGrouping(CriteriaBuilder cb,
+                               CriteriaQuery<?> cq,
+                               Root<?> root,
+                               Map<String, From<?, ?>> joins,
+                               GenericRequest request,
+                               Map<String, Expression<?>> groups,
+                               Map<String, Expression<?>> aggregates,
+                               PlanContext ctx) {
+        List<Predicate> predicates = buildPredicates(cb, root, joins, request.getFilters(), ctx, Collections.emptyList());
+        if (!predicates.isEmpty()) {
+            cq.where(predicates.toArray(new Predicate[0]));
+        }
+        if (!groups.isEmpty()) {
+            cq.groupBy(new ArrayList<>(groups.values()));
+        }
+        List<Predicate> having = buildHaving(cb, request.getHaving(), groups, aggregates, ctx);
+        if (!having.isEmpty()) {
+            cq.having(having.toArray(new Predicate[0]));
+        }
+    }
+
+    private Map<String, Expression<?>> groupExpressions(Root<?> root,
+                                                        Map<String, From<?, ?>> joins,
+                                                        GenericRequest request) {
+        Map<String, Expression<?>> groups = new LinkedHashMap<>();
+        if (request.getGroupBy() != null) {
+            for (String field : request.getGroupBy()) {
+                groups.put(field, getPath(root, field, joins));
+            }
+        }
+        return groups;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Map<String, Expression<?>> aggregateExpressions(CriteriaBuilder cb,
+                                                            Root<?> root,
+                                                            Map<String, From<?, ?>> joins,
+                                                            GenericRequest request) {
+        Map<String, Expression<?>> out = new LinkedHashMap<>();
+        if (request.getAggregates() == null) return out;
+        for (AggregateSpec a : request.getAggregates()) {
+            String fn = a.getFunction() == null ? "" : a.getFunction();
+            String field = a.getField();
+            Path<?> p = field != null ? getPath(root, field, joins) : null;
+            if (p == null && !"count".equalsIgnoreCase(fn)) {
+                throw new IllegalArgumentException("Aggregate '" + fn + "' needs a field");
+            }
+            Expression<?> e;
+            switch (fn.toLowerCase()) {
+                case "count":
+                    e = p != null ? cb.count(p) : cb.count(root);
+                    break;
+                case "countdistinct":
+                    e = cb.countDistinct(p);
+                    break;
+                case "sum":
+                    e = cb.sum(numeric(p, fn));
+                    break;
+                case "avg":
+                    e = cb.avg(numeric(p, fn));
+                    break;
+                case "min":
+                    e = cb.least((Expression<Comparable>) p);
+                    break;
+                case "max":
+                    e = cb.greatest((Expression<Comparable>) p);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown aggregate function: " + fn);
+            }
+            out.put(a.getAlias(), e);
+        }
+        return out;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Expression<Number> numeric(Path<?> p, String fn) {
+        if (!Number.class.isAssignableFrom(ValueCoercion.box(p.getJavaType()))) {
+            throw new IllegalArgumentException("Aggregate '" + fn + "' needs a numeric field");
+        }
+        return (Expression<Number>) p;
+    }
+
+    /**
+     * HAVING conditions keyed by aggregate alias (or groupBy field) with an optional
+     * operator suffix: _gt, _gte, _lt, _lte, _between, or none for equals.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<Predicate> buildHaving(CriteriaBuilder cb,
+                                        Map<String, Object> having,
+                                        Map<String, Expression<?>> groups,
+                                        Map<String, Expression<?>> aggregates,
+                                        PlanContext ctx) {
+        List<Predicate> predicates = new ArrayList<>();
+        if (having == null) return predicates;
+        for (Map.Entry<String, Object> entry : having.entrySet()) {
+            String key = entry.getKey();
+            List<String> path = Collections.singletonList(key);
+            Kind kind = Kind.EQUALS;
+            String column = key;
+            for (Map.Entry<String, Kind> op : HAVING_OPERATORS.entrySet()) {
+                if (key.endsWith(op.getKey())) {
+                    kind = op.getValue();
+                    column = key.substring(0, key.length() - op.getKey().length());
+                    break;
+                }
+            }
+            Expression<?> e = aggregates.containsKey(column) ? aggregates.get(column) : groups.get(column);
+            if (e == null) {
+                throw new IllegalArgumentException("Unknown having column '" + column
+                        + "': use an aggregate alias or a groupBy field");
+            }
+            Class<Comparable> type = (Class<Comparable>) ValueCoercion.box(e.getJavaType());
+            Expression<Comparable> expr = (Expression<Comparable>) e;
+            switch (kind) {
+                case GREATER:
+                    predicates.add(cb.greaterThan(expr, ctx.param(cb, path, kind, type, true)));
+                    break;
+                case GREATER_OR_EQUAL:
+                    predicates.add(cb.greaterThanOrEqualTo(expr, ctx.param(cb, path, kind, type, true)));
+                    break;
+                case LESS:
+                    predicates.add(cb.lessThan(expr, ctx.param(cb, path, kind, type, true)));
+                    break;
+                case LESS_OR_EQUAL:
+                    predicates.add(cb.lessThanOrEqualTo(expr, ctx.param(cb, path, kind, type, true)));
+                    break;
+                case BETWEEN_FROM:
+                    if (!RequestKeys.isRange(entry.getValue())) {
+                        throw new IllegalArgumentException("'" + key + "' needs a [from, to] pair");
+                    }
+                    predicates.add(cb.between(expr,
+                            ctx.param(cb, path, Kind.BETWEEN_FROM, type, true),
+                            ctx.param(cb, path, Kind.BETWEEN_TO, type, true)));
+                    break;
+                default:
+                    predicates.add(cb.equal(expr, ctx.param(cb, path, Kind.EQUALS, type, true)));
+            }
+        }
+        return predicates;
+    }
+
+    private static final Map<String, Kind> HAVING_OPERATORS = new LinkedHashMap<>();
+    static {
+        HAVING_OPERATORS.put("_between", Kind.BETWEEN_FROM);
+        HAVING_OPERATORS.put("_gte", Kind.GREATER_OR_EQUAL);
+        HAVING_OPERATORS.put("_lte", Kind.LESS_OR_EQUAL);
+        HAVING_OPERATORS.put("_gt", Kind.GREATER);
+        HAVING_OPERATORS.put("_lt", Kind.LESS);
+    }
+
+    // =====================================================================
+    // Filters: equals, _search, _startsWith, _ieq, _like, _between, _inSubquery
+    // Values become parameters; the plan binds them per request.
     // =====================================================================
     @SuppressWarnings({"unchecked", "rawtypes"})
     private List<Predicate> buildPredicates(CriteriaBuilder cb,
                                             Root<?> root,
                                             Map<String, From<?, ?>> joins,
-                                            Map<String, Object> filters) throws ClassNotFoundException {
+                                            Map<String, Object> filters,
+                                            PlanContext ctx,
+                                            List<String> prefix) {
 
         List<Predicate> predicates = new ArrayList<>();
         if (filters == null) return predicates;
@@ -180,97 +1198,221 @@ public class GenericQueryService {
         for (Map.Entry<String, Object> e : filters.entrySet()) {
             String key = e.getKey();
             Object val = e.getValue();
+            List<String> path = append(prefix, key);
+
+            if (key.endsWith("_search")) {
+                // full-text match: the search index returns the ids, the database keeps the other predicates
+                String field = key.substring(0, key.length() - "_search".length());
+                AttributePath ap = registry.entity(root.getJavaType()).path(field);
+                String owner = ap.getOwnerEntity();
+                String leaf = ap.segments[ap.segments.length - 1];
+                if (!searchIndex.isSearchable(owner, leaf)) {
+                    throw new IllegalArgumentException("Field '" + field + "' is not full-text indexed");
+                }
+                int dot = field.lastIndexOf('.');
+                String idField = (dot < 0 ? "" : field.substring(0, dot + 1)) + registry.entity(owner).getIdAttribute();
+                Path<Object> idPath = getPath(root, idField, joins);
+                ParameterExpression<Collection> ids = ctx.param(cb, path, Kind.SEARCH, Collection.class);
+                predicates.add(idPath.in(ids));
+                if (prefix.isEmpty() && ctx.search == null) {
+                    ctx.search = new SearchFilter(idPath, path);
+                }
+
+            } else if (key.endsWith("_startsWith")) {
+                // case-sensitive prefix as a range (field >= 'Jo' AND field < 'Jp'): a plain
+                // index range scan, unlike LIKE with a bound pattern, which H2 cannot seek on
+                String field = key.substring(0, key.length() - "_startsWith".length());
+                Path<String> p = getPath(root, field, joins);
+                predicates.add(cb.and(
+                        cb.greaterThanOrEqualTo(p, ctx.param(cb, path, Kind.PREFIX_FROM, String.class)),
+                        cb.lessThan(p, ctx.param(cb, path, Kind.PREFIX_TO, String.class))
+                ));
+
+            } else if (key.endsWith("_ieq")) {
+                // case-insensitive equals: no wildcard scan. Fields with a lowerCase property compare
+                // their indexed lower-case column; others fall back to lower(field), a scan
+                String field = key.substring(0, key.length() - "_ieq".length());
+                Path<String> p = getPath(root, field, joins);
+                String lowerCase = lowerCasePath(root.getJavaType(), field);
+                Expression<String> lowered = lowerCase != null ? getPath(root, lowerCase, joins) : cb.lower(p);
+                predicates.add(
+                        cb.equal(lowered, ctx.param(cb, path, Kind.IEQUALS, String.class))
+                );
 
-            if (key.endsWith("_like")) {
+            } else if (key.endsWith("_like")) {
                 String field = key.substring(0, key.length() - "_like".length());
                 Path<String> p = getPath(root, field, joins);
                 predicates.add(
-                        cb.like(cb.lower(p), "%" + val.toString().toLowerCase() + "%")
+                        cb.like(cb.lower(p), ctx.param(cb, path, Kind.LIKE, String.class))
                 );
 
             } else if (key.endsWith("_between")) {
                 String field = key.substring(0, key.length() - "_between".length());
-                List<?> range = (List<?>) val;
-                if (range != null && range.size() >= 2) {
-                    Comparable<?> from = normalizeComparable(range.get(0));
-                    Comparable<?> to   = normalizeComparable(range.get(1));
-
+                if (RequestKeys.isRange(val)) {
                     Path<?> rawPath = getPath(root, field, joins);
+                    Class<Comparable> type = (Class<Comparable>) ValueCoercion.box(rawPath.getJavaType());
                     Expression<Comparable> expr = (Expression<Comparable>) rawPath;
 
                     predicates.add(
-                            cb.between(expr, (Comparable) from, (Comparable) to)
+                            cb.between(expr,
+                                    ctx.param(cb, path, Kind.BETWEEN_FROM, type),
+                                    ctx.param(cb, path, Kind.BETWEEN_TO, type))
                     );
                 }
 
             } else if (key.endsWith("_inSubquery")) {
                 String field = key.substring(0, key.length() - "_inSubquery".length());
                 Map<String, Object> subSpec = (Map<String, Object>) val;
-                predicates.add(buildInSubqueryPredicate(cb, root, field, subSpec));
+                predicates.add(buildInSubqueryPredicate(cb, root, joins, field, subSpec, ctx, path));
 
             } else {
                 // equals
                 Path<Object> p = getPath(root, key, joins);
-                predicates.add(cb.equal(p, val));
+                Class<Object> type = (Class<Object>) ValueCoercion.box(p.getJavaType());
+                predicates.add(cb.equal(p, ctx.param(cb, path, Kind.EQUALS, type)));
             }
         }
         return predicates;
     }
 
+    private static List<String> append(List<String> prefix, String key) {
+        List<String> path = new ArrayList<>(prefix.size() + 1);
+        path.addAll(prefix);
+        path.add(key);
+        return path;
+    }
+
     // =====================================================================
     // Sorting (multi + legacy single)
     // =====================================================================
+    private List<SortSpec> sortSpecs(GenericRequest request) {
+        if (request.getSorts() != null && !request.getSorts().isEmpty()) {
+            return request.getSorts();
+        } else if (request.getSort() != null && !request.getSort().isEmpty()) {
+            String[] sp = request.getSort().split(",");
+            return Collections.singletonList(new SortSpec(sp[0], sp.length > 1 ? sp[1] : "asc"));
+        }
+        return Collections.emptyList();
+    }
+
     private List<Order> buildOrders(CriteriaBuilder cb,
                                     Root<?> root,
                                     Map<String, From<?, ?>> joins,
-                                    GenericRequest request) {
+                                    List<SortSpec> sorts,
+                                    PlanContext ctx) {
 
         List<Order> orders = new ArrayList<>();
-
-        if (request.getSorts() != null && !request.getSorts().isEmpty()) {
-            for (SortSpec spec : request.getSorts()) {
-                Path<?> p = getPath(root, spec.getField(), joins);
-                if ("desc".equalsIgnoreCase(spec.getDirection())) {
-                    orders.add(cb.desc(p));
-                } else {
-                    orders.add(cb.asc(p));
-                }
+        for (SortSpec spec : sorts) {
+            if (RANK.equals(spec.getField())) {
+                Expression<Integer> rank = rankExpression(cb, ctx);
+                orders.add(isDesc(spec) ? cb.desc(rank) : cb.asc(rank));
+                continue;
             }
-        } else if (request.getSort() != null && !request.getSort().isEmpty()) {
-            String[] sp = request.getSort().split(",");
-            Path<?> p = getPath(root, sp[0], joins);
-            if (sp.length > 1 && "desc".equalsIgnoreCase(sp[1])) {
+            Path<?> p = getPath(root, spec.getField(), joins);
+            if (isDesc(spec)) {
                 orders.add(cb.desc(p));
             } else {
                 orders.add(cb.asc(p));
             }
         }
-
         return orders;
     }
 
+    /**
+     * Relevance position of the row among the search hits (0 = best match):
+     * CASE WHEN id = ?0 THEN 0 WHEN id = ?1 THEN 1 ... over the hit ids, which the
+     * index returns best first. The width is the hit count padded to a power of two
+     * (at most max-hits), so plans are shared between searches of similar size;
+     * positions past the last hit bind null and match nothing.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Expression<Integer> rankExpression(CriteriaBuilder cb, PlanContext ctx) {
+        SearchFilter search = ctx.search;
+        if (search == null) {
+            throw new IllegalArgumentException("Sorting by " + RANK + " needs a _search filter");
+        }
+        Class idType = ValueCoercion.box(search.idPath.getJavaType());
+        CriteriaBuilder.Case<Integer> rank = cb.selectCase();
+        for (int i = 0; i < ctx.rankWidth; i++) {
+            rank = rank.when(cb.equal(search.idPath, ctx.param(cb, search.path, Kind.SEARCH_RANK, idType, false, i)),
+                    cb.literal(i));
+        }
+        return rank.otherwise(cb.literal(ctx.rankWidth));
+    }
+
+    /**
+     * Runs every {@code _search} filter of {@code filters} once, including those in
+     * {@code _inSubquery} specs compiled as EXISTS (inlined ones are planned on their
+     * own), keyed by filter path like the plan's bindings. No hits become an id no row
+     * has, since IN () is not valid SQL everywhere.
+     */
+    @SuppressWarnings("unchecked")
+    private void collectSearches(String entity, Map<String, Object> filters, String prefix, Set<String> inlined,
+                                 Map<String, SearchIndex.Hits> out, QueryTrace trace) {
+        if (filters == null) return;
+        for (Map.Entry<String, Object> e : filters.entrySet()) {
+            String key = e.getKey();
+            String path = prefix + key;
+            if (key.endsWith("_search")) {
+                AttributePath ap = registry.entity(entity).path(key.substring(0, key.length() - "_search".length()));
+                String owner = ap.getOwnerEntity();
+                String leaf = ap.segments[ap.segments.length - 1];
+                if (!searchIndex.isSearchable(owner, leaf)) {
+                    continue;   // rejected when the query is compiled
+                }
+                String text = String.valueOf(e.getValue());
+                SearchIndex.Hits hits = trace != null
+                        ? trace.time("search", () -> searchIndex.search(owner, leaf, text))
+                        : searchIndex.search(owner, leaf, text);
+                out.put(path, hits.getIds().isEmpty()
+                        ? new SearchIndex.Hits(Collections.singletonList(ValueCoercion.coerce(-1, idType(owner))), false)
+                        : hits);
+            } else if (key.endsWith("_inSubquery") && e.getValue() instanceof Map && !inlined.contains(path)) {
+                Map<String, Object> spec = (Map<String, Object>) e.getValue();
+                if (spec.get("entity") instanceof String) {
+                    collectSearches((String) spec.get("entity"), (Map<String, Object>) spec.get("filters"),
+                            path + "/", inlined, out, trace);
+                }
+            }
+        }
+    }
+
+    /** Width of the "_rank" CASE for {@code request}: 0 when it does not sort by relevance. */
+    private int rankWidth(GenericRequest request, Map<String, SearchIndex.Hits> searches) {
+        if (sortSpecs(request).stream().noneMatch(s -> RANK.equals(s.getField()))) {
+            return 0;
+        }
+        int hits = 1;
+        for (Map.Entry<String, SearchIndex.Hits> e : searches.entrySet()) {
+            if (e.getKey().indexOf('/') < 0) hits = Math.max(hits, e.getValue().getIds().size());
+        }
+        return Math.min(Integer.highestOneBit(hits * 2 - 1), Math.max(searchIndex.getMaxHits(), hits));
+    }
+
+    private static boolean isDesc(SortSpec spec) {
+        return "desc".equalsIgnoreCase(spec.getDirection());
+    }
+
     // =====================================================================
-    // Path / Join resolution (dot notation)
+    // Path / Join resolution (dot notation, precomputed by the registry)
     // =====================================================================
     @SuppressWarnings("unchecked")
     private <T> Path<T> getPath(From<?, ?> root,
                                 String field,
                                 Map<String, From<?, ?>> joins) {
-        if (!field.contains(".")) {
-            return root.get(field);
+        AttributePath ap = registry.entity(root.getJavaType()).path(field);
+        String[] parts = ap.segments;
+        if (parts.length == 1) {
+            return root.get(parts[0]);
+        }
+        // association id: read the foreign key column, no join needed
+        if (ap.foreignKey && parts.length == 2 && !joins.containsKey(ap.joinKeys[0])) {
+            return root.get(parts[0]).get(parts[1]);
         }
 
-        String[] parts = field.split("\\.");
         From<?, ?> from = root;
-        StringBuilder joinKey = new StringBuilder();
-
         for (int i = 0; i < parts.length - 1; i++) {
-            if (i > 0) {
-                joinKey.append(".");
-            }
-            joinKey.append(parts[i]);
-            String key = joinKey.toString();
-
+            String key = ap.joinKeys[i];
             From<?, ?> existing = joins.get(key);
             if (existing == null) {
                 existing = from.join(parts[i], JoinType.LEFT);
@@ -281,126 +1423,211 @@ public class GenericQueryService {
         return (Path<T>) from.get(parts[parts.length - 1]);
     }
 
-    private Comparable<?> normalizeComparable(Object o) {
-        if (o == null) return null;
-        if (o instanceof Comparable) return (Comparable<?>) o;
-        return o.toString();
+    /** The path of the lower-case property {@code @Filterable(lowerCase = ...)} pairs with {@code field}, or null. */
+    private String lowerCasePath(Class<?> entityClass, String field) {
+        AttributePath ap = registry.entity(entityClass).path(field);
+        Field declared = ReflectionUtils.findField(registry.entity(ap.getOwnerEntity()).getJavaType(),
+                ap.segments[ap.segments.length - 1]);
+        Filterable filterable = declared != null ? declared.getAnnotation(Filterable.class) : null;
+        if (filterable == null || filterable.lowerCase().isEmpty()) {
+            return null;
+        }
+        int dot = field.lastIndexOf('.');
+        return (dot < 0 ? "" : field.substring(0, dot + 1)) + filterable.lowerCase();
     }
 
     // =====================================================================
-    // Subquery support (_inSubquery) – simplified & robust
+    // Subqueries (_inSubquery): inlined as an IN list when small, EXISTS otherwise
     // =====================================================================
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    private Predicate buildInSubqueryPredicate(CriteriaBuilder cb,
-                                               Root<?> root,
-                                               String mainField,
-                                               Map<String, Object> subSpec)
-            throws ClassNotFoundException {
 
-        String subEntity = (String) subSpec.get("entity");
-        String subField = (String) subSpec.get("field");
-        Map<String, Object> subFilters = (Map<String, Object>) subSpec.get("filters");
+    /**
+     * Chooses how each {@code _inSubquery} filter of the request is compiled. A
+     * subquery returning at most inline-max-values rows is run once, cached until an
+     * entity it reads is written, and bound as a plain IN list, so neither the page
+     * nor the count query evaluates it. Larger ones become a correlated EXISTS (a
+     * semi-join the database can drive from an index), whose nested subqueries are
+     * decided the same way. Keys are filter paths ("a_inSubquery/b_inSubquery"),
+     * values the inlined values or null for EXISTS.
+     */
+    private Map<String, List<Object>> subqueries(GenericRequest request, QueryTrace trace) {
+        Map<String, List<Object>> out = new LinkedHashMap<>();
+        collectSubqueries(request.getFilters(), "", out, trace);
+        return out;
+    }
 
+    @SuppressWarnings("unchecked")
+    private void collectSubqueries(Map<String, Object> filters, String prefix, Map<String, List<Object>> out,
+                                   QueryTrace trace) {
+        if (filters == null) return;
+        for (String key : new TreeSet<>(filters.keySet())) {
+            Object val = filters.get(key);
+            if (!key.endsWith("_inSubquery") || !(val instanceof Map)) continue;
+            Map<String, Object> spec = (Map<String, Object>) val;
+            String path = prefix + key;
+            List<Object> values = null;
+            if (inlineMaxValues > 0) {
+                values = trace != null ? trace.time("subquery", () -> inlineValues(spec)) : inlineValues(spec);
+            }
+            out.put(path, values);
+            if (values == null) {
+                collectSubqueries((Map<String, Object>) spec.get("filters"), path + "/", out, trace);
+            }
+        }
+    }
+
+    private static Set<String> inlinedPaths(Map<String, List<Object>> subqueries) {
+        Set<String> inlined = new HashSet<>();
+        subqueries.forEach((path, values) -> {
+            if (values != null) inlined.add(path);
+        });
+        return inlined;
+    }
+
+    private static List<Map<String, Object>> subqueryDiagnostics(Map<String, List<Object>> subqueries) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        subqueries.forEach((path, values) -> {
+            Map<String, Object> d = new LinkedHashMap<>();
+            d.put("filter", path);
+            d.put("strategy", values != null ? "inline" : "exists");
+            if (values != null) {
+                d.put("values", values.size());
+            }
+            out.add(d);
+        });
+        return out;
+    }
+
+    /** The subquery as a request of its own: the distinct values of its field. */
+    @SuppressWarnings("unchecked")
+    private static GenericRequest subqueryRequest(Map<String, Object> spec) {
+        String subEntity = (String) spec.get("entity");
+        String subField = (String) spec.get("field");
         if (subEntity == null || subField == null) {
             throw new IllegalArgumentException("Subquery spec must contain 'entity' and 'field'");
         }
+        GenericRequest sub = new GenericRequest();
+        sub.setEntity(subEntity);
+        sub.setFields(Collections.singletonList(subField));
+        Map<String, Object> subFilters = (Map<String, Object>) spec.get("filters");
+        sub.setFilters(subFilters != null ? subFilters : new HashMap<>());
+        sub.setDistinct(true);
+        return sub;
+    }
 
-        Class<?> subEntityClass = Class.forName("com.example.dynamicquery.model." + subEntity);
+    /** The subquery's values when there are at most inline-max-values of them, otherwise null. */
+    private List<Object> inlineValues(Map<String, Object> spec) {
+        GenericRequest sub = subqueryRequest(spec);
+        QueryPlan plan = plan(sub, sub.getFields());
+        return subqueryCache.get(RequestKeys.full(sub), plan.entities, () -> {
+            List<Object> values = readValues(plan, sub, inlineMaxValues + 1);
+            return values.size() > inlineMaxValues ? null : values;
+        });
+    }
 
-        // Use a simple, raw-typed subquery to avoid generic conflicts
-        CriteriaQuery<?> outer = cb.createQuery();
-        Subquery subquery = outer.subquery(Object.class);
-        Root<?> subRoot = subquery.from(subEntityClass);
-        Map<String, From<?, ?>> subJoins = new HashMap<>();
+    private List<Object> readValues(QueryPlan plan, GenericRequest sub, int maxResults) {
+        return readOnlyTx.execute(s -> {
+            List<Object> values = new ArrayList<>();
+            for (Tuple t : timed(plan.bind(entityManager.createQuery(plan.dataQuery), sub))
+                    .setMaxResults(maxResults)
+                    .getResultList()) {
+                values.add(t.get(0));
+            }
+            return values;
+        });
+    }
 
-        // Apply filters on subquery entity (e.g. Department where name LIKE 'Sales')
-        List<Predicate> subPreds = buildPredicates(
-                cb,
-                subRoot,
-                subJoins,
-                subFilters != null ? subFilters : Collections.emptyMap()
-        );
-        if (!subPreds.isEmpty()) {
-            subquery.where(subPreds.toArray(new Predicate[0]));
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private Predicate buildInSubqueryPredicate(CriteriaBuilder cb,
+                                               Root<?> root,
+                                               Map<String, From<?, ?>> joins,
+                                               String mainField,
+                                               Map<String, Object> subSpec,
+                                               PlanContext ctx,
+                                               List<String> path) {
+        GenericRequest sub = subqueryRequest(subSpec);
+        Path<?> mainPath = getPath(root, mainField, joins);
+
+        if (ctx.inlined.contains(String.join("/", path))) {
+            // values are pinned per request (QueryPlan.withSubqueryValues); the plan still depends on its entities
+            ctx.entities.addAll(plan(sub, sub.getFields()).entities);
+            ParameterExpression<Collection> values = ctx.param(cb, path, Kind.SUBQUERY_VALUES, Collection.class);
+            return mainPath.in(values);
         }
 
-        Path<?> subPath = getPath(subRoot, subField, subJoins);
-        subquery.select((Expression) subPath); // raw cast is acceptable here
+        // EXISTS (select 1 from Sub s where <sub filters> and s.field = main.field)
+        CriteriaQuery<?> outer = cb.createQuery();
+        Subquery<Integer> subquery = outer.subquery(Integer.class);
+        Root<?> subRoot = subquery.from(registry.entity(sub.getEntity()).getJavaType());
+        Map<String, From<?, ?>> subJoins = new HashMap<>();
 
-        Path<?> mainPath = getPath(root, mainField, new HashMap<>());
-        return ((Expression) mainPath).in(subquery);
+        List<Predicate> subPreds = buildPredicates(cb, subRoot, subJoins, sub.getFilters(), ctx, path);
+        subPreds.add(cb.equal(getPath(subRoot, sub.getFields().get(0), subJoins), mainPath));
+        subquery.select(cb.literal(1)).where(subPreds.toArray(new Predicate[0]));
+        collectEntities(subRoot, ctx.entities);
+        return cb.exists(subquery);
     }
 
     // =====================================================================
-    // Excel export
+    // Export jobs: the reads ExportJobService runs on its worker threads
     // =====================================================================
-    private Map<String, Object> exportAsExcel(List<Map<String, Object>> data,
-                                              String entity,
-                                              List<String> fields) {
-        try (Workbook wb = new XSSFWorkbook()) {
-            Sheet sheet = wb.createSheet(entity != null ? entity : "export");
-            CreationHelper ch = wb.getCreationHelper();
-
-            List<String> headerFields =
-                    (fields == null || fields.isEmpty())
-                            ? deriveFieldsFromData(data)
-                            : fields;
-
-            // Header
-            Row header = sheet.createRow(0);
-            for (int i = 0; i < headerFields.size(); i++) {
-                header.createCell(i).setCellValue(headerFields.get(i));
-            }
-
-            CellStyle dateStyle = wb.createCellStyle();
-            short df = ch.createDataFormat().getFormat("yyyy-MM-dd");
-            dateStyle.setDataFormat(df);
-
-            // Rows
-            for (int r = 0; r < data.size(); r++) {
-                Row row = sheet.createRow(r + 1);
-                Map<String, Object> rec = data.get(r);
-                for (int c = 0; c < headerFields.size(); c++) {
-                    String key = headerFields.get(c);
-                    Object v = rec.get(key);
-                    Cell cell = row.createCell(c);
-                    if (v == null) {
-                        cell.setBlank();
-                    } else if (v instanceof Number) {
-                        cell.setCellValue(((Number) v).doubleValue());
-                    } else if (v instanceof LocalDate) {
-                        cell.setCellValue((LocalDate) v);
-                        cell.setCellStyle(dateStyle);
-                    } else if (v instanceof Boolean) {
-                        cell.setCellValue((Boolean) v);
-                    } else {
-                        cell.setCellValue(v.toString());
-                    }
+    /** Streams every row of the plan to the handler in one read-only transaction; returns the row count. */
+    long exportRows(QueryPlan plan, GenericRequest request, RowHandler handler) throws IOException {
+        try {
+            return readOnlyTx.execute(s -> {
+                try {
+                    return streamRows(plan, request, handler);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-            }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-            for (int i = 0; i < headerFields.size(); i++) {
-                sheet.autoSizeColumn(i);
+    /** Every row of the plan, read at once: one key-range chunk of a parallel export. */
+    List<Object[]> readRows(QueryPlan plan, GenericRequest request) {
+        return readOnlyTx.execute(s -> {
+            TypedQuery<Tuple> query = plan.bind(entityManager.createQuery(plan.dataQuery), request);
+            query.setHint(QueryHints.HINT_FETCH_SIZE, exportFetchSize);
+            query.setHint(QueryHints.HINT_READONLY, true);
+            List<Tuple> tuples = query.getResultList();
+            List<Object[]> rows = new ArrayList<>(tuples.size());
+            for (Tuple t : tuples) {
+                rows.add(plan.values(t));
             }
-
-            String fileName = System.getProperty("java.io.tmpdir") + "/"
-                    + (entity != null ? entity : "export") + "_export.xlsx";
-
-            try (FileOutputStream fos = new FileOutputStream(fileName)) {
-                wb.write(fos);
+            if (!plan.batchFetches.isEmpty()) {
+                batchFetch(plan, rows);
             }
+            return rows;
+        });
+    }
+
+    /** Total rows of the request, or null when the count does not finish within the count timeout. */
+    Long countRows(QueryPlan plan, GenericRequest request) {
+        try {
+            return readOnlyTx.execute(s -> runCount(plan, request));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
 
-            Map<String, Object> res = new HashMap<>();
-            res.put("file", fileName);
-            res.put("message", "Excel export successful");
-            return res;
-        } catch (Exception e) {
-            throw new RuntimeException("Excel export failed: " + e.getMessage(), e);
+    /** Smallest and largest id of the entity, ignoring filters; null when the table is empty. */
+    long[] idRange(String entity) {
+        EntityRegistry.EntityInfo info = registry.entity(entity);
+        String id = info.getIdAttribute();
+        Object[] minMax = readOnlyTx.execute(s -> entityManager.createQuery(
+                "select min(e." + id + "), max(e." + id + ") from " + info.getJavaType().getName() + " e",
+                Object[].class).getSingleResult());
+        if (minMax == null || minMax[0] == null) {
+            return null;
         }
+        return new long[]{((Number) minMax[0]).longValue(), ((Number) minMax[1]).longValue()};
     }
 
-    private List<String> deriveFieldsFromData(List<Map<String, Object>> data) {
-        if (data == null || data.isEmpty()) return Collections.emptyList();
-        return new ArrayList<>(data.get(0).keySet());
+    /** Java type of the entity's id attribute. */
+    Class<?> idType(String entity) {
+        EntityRegistry.EntityInfo info = registry.entity(entity);
+        return info.path(info.getIdAttribute()).getJavaType();
     }
 }
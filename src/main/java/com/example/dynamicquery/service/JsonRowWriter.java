@@ -0,0 +1,55 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.RowSchema;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes rows as they arrive, either as newline-delimited JSON objects or as the
+ * elements of one JSON array. The first row is flushed immediately so clients
+ * see data before the query has finished; after that the servlet buffer decides.
+ */
+class JsonRowWriter implements RowHandler {
+
+    private final JsonGenerator gen;
+    private final RowSchema schema;
+    private final boolean ndjson;
+    private long written;
+
+    JsonRowWriter(ObjectMapper mapper, OutputStream out, RowSchema schema, boolean ndjson) throws IOException {
+        this.gen = mapper.getFactory().createGenerator(out);
+        this.schema = schema;
+        this.ndjson = ndjson;
+        if (ndjson) {
+            gen.setRootValueSeparator(null);
+        } else {
+            gen.writeStartArray();
+        }
+    }
+
+    @Override
+    public void handle(Object[] values) throws IOException {
+        gen.writeStartObject();
+        for (int i = 0; i < values.length; i++) {
+            gen.writeFieldName(schema.getColumns().get(i));
+            gen.writeObject(values[i]);
+        }
+        gen.writeEndObject();
+        if (ndjson) {
+            gen.writeRaw('\n');
+        }
+        if (++written == 1) {
+            gen.flush();
+        }
+    }
+
+    void finish() throws IOException {
+        if (!ndjson) {
+            gen.writeEndArray();
+        }
+        gen.flush();
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.dynamicquery.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.*;
+
+/**
+ * Opaque continuation token for keyset pagination: the sort-key values of the last
+ * row of a page (tie-breaker included) plus a signature of the ordering they
+ * belong to, base64url encoded. A token presented with a different ordering is
+ * rejected instead of silently seeking to the wrong place.
+ */
+final class KeysetCursor {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private KeysetCursor() {}
+
+    static String encode(Object[] keys, String signature) {
+        List<Object> values = new ArrayList<>(keys.length);
+        for (Object k : keys) {
+            // numbers, strings and booleans survive JSON as-is; anything else (dates) goes as text
+            values.add(k == null || k instanceof Number || k instanceof String || k instanceof Boolean
+                    ? k : k.toString());
+        }
+        Map<String, Object> token = new LinkedHashMap<>();
+        token.put("s", signature);
+        token.put("k", values);
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(token));
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not encode cursor", e);
+        }
+    }
+
+    static Object[] decode(String cursor, String signature, Class<?>[] types) {
+        Map<?, ?> token;
+        try {
+            token = MAPPER.readValue(Base64.getUrlDecoder().decode(cursor), Map.class);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+        if (!signature.equals(token.get("s"))) {
+            throw new IllegalArgumentException("Cursor does not match the requested sort order");
+        }
+        List<?> values = (List<?>) token.get("k");
+        if (values == null || values.size() != types.length) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        Object[] keys = new Object[types.length];
+        for (int i = 0; i < keys.length; i++) {
+            // null keys are legal: the seek predicate places them where H2 sorts NULL
+            keys[i] = values.get(i) != null ? ValueCoercion.coerce(values.get(i), types[i]) : null;
+        }
+        return keys;
+    }
+
+    static String signature(String sortShape) {
+        return Integer.toHexString(sortShape.hashCode());
+    }
+}
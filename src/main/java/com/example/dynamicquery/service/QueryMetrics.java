@@ -0,0 +1,152 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer instrumentation of the query pipeline (exposed through Actuator):
+ * <ul>
+ *   <li>{@code dynamic.query.request}: whole request, by endpoint, entity, shape and
+ *       outcome (hit = result cache, snapshot = columnar snapshot, miss = queries ran, error)</li>
+ *   <li>{@code dynamic.query.phase}: plan, execute, count, map, export, serialize,
+ *       by entity and shape</li>
+ *   <li>{@code dynamic.query.rows}: rows returned per request, by endpoint and entity</li>
+ * </ul>
+ * The shape tag is a short hash of {@link RequestKeys#shape}; the slow-query log
+ * prints both, so a hot tag can be traced back to its request shape and SQL.
+ * Shapes come from clients, so the tag takes at most {@code max-shape-tags}
+ * distinct values (later shapes are tagged "other"), and the request timer only
+ * publishes a percentile histogram when it carries no shape tag.
+ */
+@Component
+public class QueryMetrics {
+
+    private static final Logger slowLog = LoggerFactory.getLogger("dynamic.query.slow");
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private EntityRegistry entityRegistry;
+
+    @Value("${dynamic.metrics.shape-tags:true}")
+    private boolean shapeTags;
+
+    @Value("${dynamic.metrics.max-shape-tags:100}")
+    private int maxShapeTags;
+
+    @Value("${dynamic.query.slow-log.threshold-ms:500}")
+    private long slowThresholdMs;
+
+    @Value("${dynamic.query.slow-log.sample-rate:1.0}")
+    private double slowSampleRate;
+
+    private final Set<String> taggedShapes = ConcurrentHashMap.newKeySet();
+
+    QueryTrace start(String endpoint, GenericRequest request, String shape) {
+        return new QueryTrace(endpoint, entityTag(request.getEntity()), shape,
+                slowThresholdMs >= 0 || request.isExplain());
+    }
+
+    void finish(QueryTrace trace) {
+        long total = System.nanoTime() - trace.startedAt;
+        String shapeTag = shapeTag(trace.shape);
+
+        Timer.builder("dynamic.query.request")
+                .description("Dynamic query requests, end to end (without response serialization)")
+                .tags("endpoint", trace.endpoint, "entity", trace.entity, "shape", shapeTag,
+                        "outcome", trace.outcome())
+                .publishPercentileHistogram(!shapeTags)
+                .register(meterRegistry)
+                .record(total, TimeUnit.NANOSECONDS);
+
+        trace.phases.forEach((phase, nanos) -> phaseTimer(phase, trace.entity, shapeTag)
+                .record(nanos, TimeUnit.NANOSECONDS));
+
+        if (trace.rows >= 0) {
+            DistributionSummary.builder("dynamic.query.rows")
+                    .description("Rows returned per request")
+                    .baseUnit("rows")
+                    .tags("endpoint", trace.endpoint, "entity", trace.entity)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(trace.rows);
+        }
+
+        if (slowThresholdMs >= 0 && total >= TimeUnit.MILLISECONDS.toNanos(slowThresholdMs)) {
+            Counter.builder("dynamic.query.slow")
+                    .description("Requests slower than the slow-log threshold")
+                    .tags("endpoint", trace.endpoint, "entity", trace.entity)
+                    .register(meterRegistry)
+                    .increment();
+            if (ThreadLocalRandom.current().nextDouble() < slowSampleRate) {
+                logSlow(trace, total, shapeTag);
+            }
+        }
+    }
+
+    /** Response serialization happens in the controller, after the trace is finished. */
+    public void recordSerialization(GenericRequest request, long nanos) {
+        String shape = shapeTags ? shapeTag(RequestKeys.shape(request, request.getFields())) : "all";
+        phaseTimer("serialize", entityTag(request.getEntity()), shape).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer phaseTimer(String phase, String entity, String shape) {
+        return Timer.builder("dynamic.query.phase")
+                .description("Time spent per pipeline phase")
+                .tags("phase", phase, "entity", entity, "shape", shape)
+                .register(meterRegistry);
+    }
+
+    private void logSlow(QueryTrace trace, long totalNanos, String shapeTag) {
+        Map<String, Long> phasesMs = new TreeMap<>();
+        trace.phases.forEach((k, v) -> phasesMs.put(k, TimeUnit.NANOSECONDS.toMillis(v)));
+        List<String> sql = trace.statements;
+        slowLog.warn("slow {} entity={} shape={} total={}ms phases={} rows={} outcome={} request=[{}] sql={}",
+                trace.endpoint, trace.entity, shapeTag, TimeUnit.NANOSECONDS.toMillis(totalNanos),
+                phasesMs, trace.rows, trace.outcome(), trace.shape,
+                sql == null ? "[]" : sql.stream().map(s -> s.replaceAll("\\s+", " ").trim()).distinct()
+                        .collect(java.util.stream.Collectors.toList()));
+    }
+
+    private String shapeTag(String shape) {
+        if (!shapeTags) {
+            return "all";
+        }
+        String tag = Integer.toHexString(shape.hashCode());
+        if (taggedShapes.contains(tag)) {
+            return tag;
+        }
+        // the check and the add race; the cap may be overshot by a few tags, never by many
+        if (taggedShapes.size() >= maxShapeTags) {
+            return "other";
+        }
+        taggedShapes.add(tag);
+        return tag;
+    }
+
+    /** Unknown names would make every typo its own time series. */
+    private String entityTag(String entity) {
+        try {
+            return entityRegistry.entity(entity).getName();
+        } catch (IllegalArgumentException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.dto.RowSchema;
+
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled request shape: the data and count criteria trees, built once with a
+ * parameter placeholder for every filter value, plus the bindings that pull the
+ * values of a concrete request out of its filter (or having) map. Plans are immutable once
+ * built and shared between threads through {@link QueryPlanCache}.
+ */
+final class QueryPlan {
+
+    enum Kind {
+        EQUALS, LIKE, PREFIX_FROM, PREFIX_TO, IEQUALS, BETWEEN_FROM, BETWEEN_TO,
+        GREATER, GREATER_OR_EQUAL, LESS, LESS_OR_EQUAL,
+        SEARCH,         // full-text match: the ids the search index returns, pinned per request
+        SEARCH_RANK,    // one hit id per relevance position; only the data query sorts by it
+        SUBQUERY_VALUES // the values of an inlined _inSubquery, pinned per request
+    }
+
+    /**
+     * One parameter and where its value lives: the (possibly nested) filter map,
+     * or the having map for conditions on aggregates.
+     */
+    static final class Binding {
+        final ParameterExpression<?> param;
+        final List<String> path;
+        final Kind kind;
+        final Class<?> type;
+        final boolean having;
+        final int position;     // SEARCH_RANK: which hit (0 = best match) the parameter holds
+
+        Binding(ParameterExpression<?> param, List<String> path, Kind kind, Class<?> type, boolean having,
+                int position) {
+            this.param = param;
+            this.path = path;
+            this.kind = kind;
+            this.type = type;
+            this.having = having;
+            this.position = position;
+        }
+    }
+
+    /**
+     * An association loaded by a second query instead of a join: its key column
+     * is read from the page, the other columns are filled in from
+     * {@link #query} (id first), run once per batch of distinct keys.
+     */
+    static final class BatchFetch {
+        final String query;             // "select e.id, e.a, e.b from Target e where e.id in :ids"
+        final int keyColumn;
+        final int[] columns;            // output column of each selected attribute after the id
+
+        BatchFetch(String query, int keyColumn, int[] columns) {
+            this.query = query;
+            this.keyColumn = keyColumn;
+            this.columns = columns;
+        }
+    }
+
+    final Class<?> entityClass;
+    final List<String> fields;          // output columns
+    final RowSchema schema;             // output columns, shared by every result of this plan
+    final CriteriaQuery<Tuple> dataQuery;
+    final CriteriaQuery<Long> countQuery;
+    private final List<Binding> bindings;
+    final List<String> entities;        // every entity the queries read (root, joins, subqueries)
+    final boolean grouped;              // GROUP BY / aggregates: the count query returns one row per group
+
+    // keyset pagination: tuple positions and types of the sort keys, null for offset plans;
+    // seek parameters are only present on plans compiled for a request carrying a cursor
+    final int[] keyIndexes;
+    final Class<?>[] keyTypes;
+    final String keySignature;
+    private final List<ParameterExpression<?>> seekParams;
+
+    // batch fetching: tuple position of each output column (-1 for batch-fetched ones), null when
+    // the tuple holds every column in order
+    private final int[] tupleIndexes;
+    final List<BatchFetch> batchFetches;
+
+    // values of the inlined _inSubquery filters and the hits of the _search filters by filter
+    // path, read when the plan was picked for a request; null on the shared (cached) plan
+    private final Map<String, List<Object>> subqueryValues;
+    private final Map<String, SearchIndex.Hits> searchHits;
+
+    QueryPlan(Class<?> entityClass,
+              List<String> fields,
+              CriteriaQuery<Tuple> dataQuery,
+              CriteriaQuery<Long> countQuery,
+              List<Binding> bindings,
+              List<String> entities,
+              boolean grouped,
+              int[] keyIndexes,
+              Class<?>[] keyTypes,
+              String keySignature,
+              List<ParameterExpression<?>> seekParams,
+              int[] tupleIndexes,
+              List<BatchFetch> batchFetches) {
+        this.entityClass = entityClass;
+        this.fields = Collections.unmodifiableList(fields);
+        this.schema = new RowSchema(fields);
+        this.dataQuery = dataQuery;
+        this.countQuery = countQuery;
+        this.bindings = Collections.unmodifiableList(bindings);
+        this.entities = Collections.unmodifiableList(entities);
+        this.grouped = grouped;
+        this.keyIndexes = keyIndexes;
+        this.keyTypes = keyTypes;
+        this.keySignature = keySignature;
+        this.seekParams = seekParams;
+        this.tupleIndexes = tupleIndexes;
+        this.batchFetches = Collections.unmodifiableList(batchFetches);
+        this.subqueryValues = null;
+        this.searchHits = null;
+    }
+
+    private QueryPlan(QueryPlan shared, Map<String, List<Object>> subqueryValues,
+                      Map<String, SearchIndex.Hits> searchHits) {
+        this.entityClass = shared.entityClass;
+        this.fields = shared.fields;
+        this.schema = shared.schema;
+        this.dataQuery = shared.dataQuery;
+        this.countQuery = shared.countQuery;
+        this.bindings = shared.bindings;
+        this.entities = shared.entities;
+        this.grouped = shared.grouped;
+        this.keyIndexes = shared.keyIndexes;
+        this.keyTypes = shared.keyTypes;
+        this.keySignature = shared.keySignature;
+        this.seekParams = shared.seekParams;
+        this.tupleIndexes = shared.tupleIndexes;
+        this.batchFetches = shared.batchFetches;
+        this.subqueryValues = Collections.unmodifiableMap(new HashMap<>(subqueryValues));
+        this.searchHits = Collections.unmodifiableMap(new HashMap<>(searchHits));
+    }
+
+    /**
+     * This plan for one request: its inlined subqueries bind the values that were
+     * read when the plan was picked, so an IN list never outgrows the limit the
+     * inline strategy was chosen under, even if the subquery has grown since. Its
+     * {@code _search} filters bind the hits of one search each, so the page, the
+     * count and the relevance order all see the same matches.
+     */
+    QueryPlan withRequestValues(Map<String, List<Object>> subqueryValues, Map<String, SearchIndex.Hits> searchHits) {
+        return new QueryPlan(this, subqueryValues, searchHits);
+    }
+
+    /** Whether a top-level {@code _search} filter matched more rows than the index hands out. */
+    boolean searchTruncated() {
+        return searchHits != null && searchHits.entrySet().stream()
+                .anyMatch(e -> e.getKey().indexOf('/') < 0 && e.getValue().isTruncated());
+    }
+
+    /**
+     * The output columns of a tuple (hidden keyset columns dropped); batch-fetched
+     * columns stay null until the batch query fills them in.
+     */
+    Object[] values(Tuple t) {
+        Object[] values = new Object[schema.size()];
+        for (int i = 0; i < values.length; i++) {
+            int idx = tupleIndexes != null ? tupleIndexes[i] : i;
+            if (idx >= 0) {
+                values[i] = t.get(idx);
+            }
+        }
+        return values;
+    }
+
+    boolean isKeyset() {
+        return keyIndexes != null;
+    }
+
+    /** Binds the decoded keyset values onto the seek predicate of the data query. */
+    @SuppressWarnings("unchecked")
+    <T> TypedQuery<T> bindCursor(TypedQuery<T> query, Object[] cursorKeys) {
+        for (int i = 0; i < seekParams.size(); i++) {
+            query.setParameter((ParameterExpression<Object>) seekParams.get(i), cursorKeys[i]);
+        }
+        return query;
+    }
+
+    /** Binds the filter and having values of a request onto a query created from {@link #dataQuery}. */
+    <T> TypedQuery<T> bind(TypedQuery<T> query, GenericRequest request) {
+        return bind(query, request, true);
+    }
+
+    /** Same for a query created from {@link #countQuery}, which has no ordering parameters. */
+    <T> TypedQuery<T> bindCount(TypedQuery<T> query, GenericRequest request) {
+        return bind(query, request, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> TypedQuery<T> bind(TypedQuery<T> query, GenericRequest request, boolean data) {
+        for (Binding b : bindings) {
+            if (!data && b.kind == Kind.SEARCH_RANK) continue;
+            Object raw = lookup(b.having ? request.getHaving() : request.getFilters(), b.path);
+            Object value;
+            switch (b.kind) {
+                case LIKE:
+                    value = "%" + raw.toString().toLowerCase() + "%";
+                    break;
+                case PREFIX_FROM:
+                    value = raw.toString();
+                    break;
+                case PREFIX_TO:
+                    value = prefixUpperBound(raw.toString());
+                    break;
+                case IEQUALS:
+                    value = raw.toString().toLowerCase();
+                    break;
+                case SEARCH:
+                    value = hits(b).getIds();
+                    break;
+                case SEARCH_RANK: {
+                    List<Object> ids = hits(b).getIds();
+                    value = b.position < ids.size() ? ids.get(b.position) : null;    // padding: matches no row
+                    break;
+                }
+                case SUBQUERY_VALUES:
+                    value = subqueryValues != null ? subqueryValues.get(String.join("/", b.path)) : null;
+                    if (value == null) {
+                        throw new IllegalStateException("No inlined values for subquery " + String.join("/", b.path));
+                    }
+                    break;
+                case BETWEEN_FROM:
+                    value = ValueCoercion.coerce(((List<?>) raw).get(0), b.type);
+                    break;
+                case BETWEEN_TO:
+                    value = ValueCoercion.coerce(((List<?>) raw).get(1), b.type);
+                    break;
+                default:
+                    value = ValueCoercion.coerce(raw, b.type);
+            }
+            query.setParameter((ParameterExpression<Object>) b.param, value);
+        }
+        return query;
+    }
+
+    private SearchIndex.Hits hits(Binding b) {
+        SearchIndex.Hits hits = searchHits != null ? searchHits.get(String.join("/", b.path)) : null;
+        if (hits == null) {
+            throw new IllegalStateException("No search hits for " + String.join("/", b.path));
+        }
+        return hits;
+    }
+
+    /**
+     * The smallest string greater than every string starting with {@code prefix}:
+     * the prefix with its last incrementable character bumped ("Jo" -> "Jp").
+     */
+    static String prefixUpperBound(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return String.valueOf(Character.MAX_VALUE);
+    }
+
+    /** Walks filter keys, descending into {@code _inSubquery} specs for nested keys. */
+    @SuppressWarnings("unchecked")
+    private static Object lookup(Map<String, Object> filters, List<String> path) {
+        Map<String, Object> current = filters;
+        for (int i = 0; i < path.size() - 1; i++) {
+            Map<String, Object> spec = (Map<String, Object>) current.get(path.get(i));
+            current = (Map<String, Object>) spec.get("filters");
+        }
+        return current.get(path.get(path.size() - 1));
+    }
+}
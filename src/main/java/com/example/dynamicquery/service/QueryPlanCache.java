@@ -0,0 +1,46 @@
+package com.example.dynamicquery.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Bounded LRU of compiled {@link QueryPlan}s keyed by request shape
+ * (see {@link RequestKeys#shape}). Compilation happens outside the lock; two
+ * threads missing on the same shape at once may both compile, and the last one
+ * wins, which is harmless since plans for the same shape are equivalent.
+ */
+@Component
+public class QueryPlanCache {
+
+    @FunctionalInterface
+    interface Compiler {
+        QueryPlan compile();
+    }
+
+    @Value("${dynamic.query.plan-cache.max-size:500}")
+    private int maxSize;
+
+    // plans never go stale: no TTL, no entity versions
+    private VersionedCache<QueryPlan> plans;
+
+    @PostConstruct
+    void init() {
+        plans = new VersionedCache<>(maxSize, 0, null, false);
+    }
+
+    QueryPlan get(String shape, Compiler compiler) {
+        return plans.get(shape, Collections.emptyList(), compiler::compile);
+    }
+
+    public void clear() {
+        plans.clear();
+    }
+
+    public Map<String, Object> stats() {
+        return plans.stats();
+    }
+}
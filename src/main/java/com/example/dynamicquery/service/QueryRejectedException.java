@@ -0,0 +1,19 @@
+package com.example.dynamicquery.service;
+
+/**
+ * Thrown by {@link AdmissionControl} when a request found no free slot within the
+ * wait limit, or the wait queue was already full. Mapped to 429 with Retry-After.
+ */
+public class QueryRejectedException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public QueryRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.dynamicquery.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+/**
+ * Timings of one request through the query pipeline: nanoseconds per phase
+ * (plan, execute, count, map, export...), rows produced, and the SQL sent when a
+ * slow-query log may need it. Phases can be recorded from the count thread too.
+ * Handed back to {@link QueryMetrics#finish} once the request is done.
+ */
+final class QueryTrace {
+
+    final String endpoint;
+    final String entity;
+    final String shape;
+    final long startedAt = System.nanoTime();
+    final Map<String, Long> phases = new ConcurrentHashMap<>();
+    final List<String> statements;      // null unless SQL is being captured
+    volatile long rows = -1;
+    volatile boolean executed;          // false when served from the result cache
+    volatile boolean snapshot;          // answered from a columnar snapshot
+    volatile boolean failed;
+
+    QueryTrace(String endpoint, String entity, String shape, boolean captureSql) {
+        this.endpoint = endpoint;
+        this.entity = entity;
+        this.shape = shape;
+        this.statements = captureSql ? new CopyOnWriteArrayList<>() : null;
+    }
+
+    <T> T time(String phase, Supplier<T> work) {
+        long t0 = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            record(phase, System.nanoTime() - t0);
+        }
+    }
+
+    void record(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    String outcome() {
+        return failed ? "error" : snapshot ? "snapshot" : executed ? "miss" : "hit";
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.dto.GenericRequest.AggregateSpec;
+import com.example.dynamicquery.dto.GenericRequest.SortSpec;
+
+import java.util.*;
+
+/**
+ * Canonical string keys for requests. The shape key covers everything that
+ * changes the compiled query (entity, projection, fetched associations and
+ * fetch mode, filter keys and operators, sorting, distinct, keyset vs. offset
+ * paging, whether a seek cursor is present, grouping, aggregates and having
+ * keys) but none of the filter values, page numbers or cursor values.
+ */
+final class RequestKeys {
+
+    private RequestKeys() {}
+
+    static String shape(GenericRequest request, List<String> fields) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(request.getEntity()).append('|');
+        sb.append("f=");
+        if (fields != null) sb.append(String.join(",", fields));
+        if (request.getFetch() != null && !request.getFetch().isEmpty()) {
+            sb.append("|fe=").append(String.join(",", request.getFetch()));
+            if (request.isBatchFetch()) sb.append(":batch");
+        }
+        sb.append("|d=").append(request.isDistinct());
+        sb.append("|s=");
+        appendSort(sb, request);
+        sb.append("|w=");
+        appendFilterShape(sb, request.getFilters());
+        if (request.isKeyset() && !request.isExport()) {
+            sb.append("|k=").append(request.getCursor() != null ? "seek" : "first");
+        }
+        if (request.isAggregate()) {
+            appendAggregateShape(sb, request);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A shape key extended with the strategy chosen for each {@code _inSubquery}
+     * filter path (inlined IN list or EXISTS): unchanged when there are none.
+     */
+    static String withSubqueries(String shape, Collection<String> paths, Set<String> inlined) {
+        if (paths.isEmpty()) {
+            return shape;
+        }
+        StringBuilder sb = new StringBuilder(shape).append("|sq=");
+        for (String path : paths) {
+            sb.append(path).append(inlined.contains(path) ? ":in" : ":exists").append(';');
+        }
+        return sb.toString();
+    }
+
+    /** Every property of the request, values included: equal keys mean identical responses. */
+    static String full(GenericRequest request) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(shape(request, request.getFields()));
+        sb.append("|v=");
+        appendCanonical(sb, request.getFilters());
+        if (request.isAggregate()) {
+            sb.append("|hv=");
+            appendCanonical(sb, request.getHaving());
+        }
+        sb.append("|p=").append(request.getPage()).append(',').append(request.getSize());
+        sb.append("|c=").append(request.getCountMode());
+        sb.append("|x=").append(request.isExport());
+        sb.append("|fmt=").append(request.isColumnar() ? "columnar" : "objects");
+        if (request.isKeyset()) {
+            sb.append("|cur=").append(request.getCursor());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Entity, distinct projection and the concrete filter values (plus grouping and
+     * having values for aggregates): what a total count depends on.
+     */
+    static String count(GenericRequest request) {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(request.getEntity());
+        if (request.isDistinct() && request.getFields() != null && request.getFields().size() == 1) {
+            sb.append("|cd=").append(request.getFields().get(0));
+        }
+        sb.append("|w=");
+        appendCanonical(sb, request.getFilters());
+        if (request.isAggregate()) {
+            // a grouped total is the number of groups, which HAVING can narrow
+            appendAggregateShape(sb, request);
+            sb.append("|hv=");
+            appendCanonical(sb, request.getHaving());
+        }
+        return sb.toString();
+    }
+
+    /** Maps with sorted keys, lists in order, scalars tagged by type so 1 and "1" differ. */
+    static void appendCanonical(StringBuilder sb, Object value) {
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            sb.append('{');
+            for (Object key : new TreeSet<>(map.keySet())) {
+                sb.append(key).append('=');
+                appendCanonical(sb, map.get(key));
+                sb.append(';');
+            }
+            sb.append('}');
+        } else if (value instanceof Collection) {
+            sb.append('[');
+            for (Object v : (Collection<?>) value) {
+                appendCanonical(sb, v);
+                sb.append(',');
+            }
+            sb.append(']');
+        } else if (value instanceof String) {
+            sb.append('"').append(((String) value).replace("\"", "\\\"")).append('"');
+        } else {
+            sb.append(value);
+        }
+    }
+
+    static void appendSort(StringBuilder sb, GenericRequest request) {
+        if (request.getSorts() != null && !request.getSorts().isEmpty()) {
+            for (SortSpec spec : request.getSorts()) {
+                sb.append(spec.getField())
+                        .append("desc".equalsIgnoreCase(spec.getDirection()) ? ":desc" : ":asc")
+                        .append(',');
+            }
+        } else if (request.getSort() != null && !request.getSort().isEmpty()) {
+            String[] sp = request.getSort().split(",");
+            sb.append(sp[0]).append(sp.length > 1 && "desc".equalsIgnoreCase(sp[1]) ? ":desc" : ":asc");
+        }
+    }
+
+    private static void appendAggregateShape(StringBuilder sb, GenericRequest request) {
+        sb.append("|g=");
+        if (request.getGroupBy() != null) sb.append(String.join(",", request.getGroupBy()));
+        sb.append("|a=");
+        if (request.getAggregates() != null) {
+            for (AggregateSpec a : request.getAggregates()) {
+                sb.append(a.getFunction()).append('(').append(a.getField()).append(")>")
+                        .append(a.getAlias()).append(',');
+            }
+        }
+        sb.append("|h=");
+        if (request.getHaving() != null) {
+            for (String key : new TreeSet<>(request.getHaving().keySet())) {
+                sb.append(key).append(';');
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendFilterShape(StringBuilder sb, Map<String, Object> filters) {
+        if (filters == null) return;
+        sb.append('{');
+        for (String key : new TreeSet<>(filters.keySet())) {
+            Object val = filters.get(key);
+            sb.append(key);
+            if (key.endsWith("_inSubquery") && val instanceof Map) {
+                Map<String, Object> spec = (Map<String, Object>) val;
+                sb.append('(').append(spec.get("entity")).append('.').append(spec.get("field"));
+                appendFilterShape(sb, (Map<String, Object>) spec.get("filters"));
+                sb.append(')');
+            } else if (key.endsWith("_between") && !isRange(val)) {
+                sb.append('!');   // skipped by the compiler
+            }
+            sb.append(';');
+        }
+        sb.append('}');
+    }
+
+    static boolean isRange(Object val) {
+        return val instanceof List && ((List<?>) val).size() >= 2;
+    }
+}
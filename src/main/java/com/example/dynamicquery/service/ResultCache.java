@@ -0,0 +1,65 @@
+package com.example.dynamicquery.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Complete /dynamic/fetch responses keyed by the normalized request
+ * ({@link RequestKeys#full}). Bounded LRU with a TTL; an entry is dropped as soon
+ * as any entity its queries read has been written (see {@link EntityChangeTracker}).
+ * Concurrent misses on the same key wait for the first one instead of each
+ * running the same queries.
+ */
+@Component
+public class ResultCache {
+
+    @Autowired
+    private EntityChangeTracker tracker;
+
+    @Value("${dynamic.query.result-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${dynamic.query.result-cache.max-size:500}")
+    private int maxSize;
+
+    @Value("${dynamic.query.result-cache.ttl-ms:5000}")
+    private long ttlMs;
+
+    private VersionedCache<Map<String, Object>> responses;
+
+    @PostConstruct
+    void init() {
+        responses = new VersionedCache<>(maxSize, ttlMs, tracker, true);
+    }
+
+    /**
+     * The cached response for {@code key}, or the loader's. Responses the loader
+     * marks as partial (a timed-out count) are handed out but not kept.
+     */
+    Map<String, Object> get(String key, List<String> entities, Supplier<Map<String, Object>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        return responses.get(key, entities, () -> Collections.unmodifiableMap(loader.get()),
+                value -> !Boolean.TRUE.equals(value.get("countTimedOut")));
+    }
+
+    public void clear() {
+        responses.clear();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> s = new LinkedHashMap<>();
+        s.put("enabled", enabled);
+        s.putAll(responses.stats());
+        return s;
+    }
+}
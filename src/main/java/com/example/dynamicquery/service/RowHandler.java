@@ -0,0 +1,12 @@
+package com.example.dynamicquery.service;
+
+import java.io.IOException;
+
+/**
+ * Receives one projected row at a time from a streaming read. The values array
+ * follows the order of the requested fields.
+ */
+@FunctionalInterface
+interface RowHandler {
+    void handle(Object[] values) throws IOException;
+}
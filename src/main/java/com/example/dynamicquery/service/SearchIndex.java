@@ -0,0 +1,409 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.model.Searchable;
+import com.example.dynamicquery.service.EntityRegistry.EntityInfo;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * In-memory Lucene index over the {@link Searchable} fields of each entity, one
+ * document per row keyed by id. Answers {@code _search} filters with the ids of
+ * matching rows, best match first (BM25). Rebuilt from the database when the
+ * application starts and after bulk loads; in between it follows entity writes
+ * reported by {@link EntityChangeListener}, applied once their transaction commits.
+ * A rebuild fills a new index beside the live one and swaps it in when complete.
+ */
+@Component
+public class SearchIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchIndex.class);
+
+    private static final String ID = "_id";
+
+    /** One Lucene index; a rebuild creates a new generation and swaps it in. */
+    private static final class Generation {
+        final IndexWriter writer;
+        final SearcherManager searchers;
+
+        Generation(Analyzer analyzer) throws IOException {
+            this.writer = new IndexWriter(new ByteBuffersDirectory(), new IndexWriterConfig(analyzer));
+            this.searchers = new SearcherManager(writer, null);
+        }
+
+        void close() throws IOException {
+            searchers.close();
+            writer.close();
+        }
+    }
+
+    /** A write to apply to an index generation once its transaction committed. */
+    private interface Change {
+        void apply(Generation generation) throws IOException;
+    }
+
+    private static final class EntityIndex {
+        final EntityInfo info;
+        final List<Field> fields;
+        final Object rebuildLock = new Object();    // one rebuild at a time
+        volatile Generation current;
+        List<Change> duringRebuild;     // guarded by this; non-null while a rebuild reads the table
+
+        EntityIndex(EntityInfo info, List<Field> fields, Generation current) {
+            this.info = info;
+            this.fields = fields;
+            this.current = current;
+        }
+    }
+
+    @Autowired
+    private EntityRegistry registry;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${dynamic.search.enabled:true}")
+    private boolean enabled;
+
+    @Value("${dynamic.search.max-hits:1000}")
+    private int maxHits;
+
+    private final Analyzer analyzer = new StandardAnalyzer();
+    private final Map<String, EntityIndex> indexes = new HashMap<>();
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) return;
+        for (EntityInfo info : registry.entities()) {
+            List<Field> fields = new ArrayList<>();
+            for (Field f : info.getJavaType().getDeclaredFields()) {
+                if (f.isAnnotationPresent(Searchable.class)) {
+                    if (f.getType() != String.class) {
+                        throw new IllegalStateException("@Searchable needs a String field: " + f);
+                    }
+                    f.setAccessible(true);
+                    fields.add(f);
+                }
+            }
+            if (!fields.isEmpty()) {
+                indexes.put(info.getName(), new EntityIndex(info, fields, new Generation(analyzer)));
+            }
+        }
+    }
+
+    @PreDestroy
+    void close() throws IOException {
+        for (EntityIndex idx : indexes.values()) {
+            idx.current.close();
+        }
+    }
+
+    public boolean isSearchable(String entity, String field) {
+        EntityIndex idx = indexes.get(entity);
+        return idx != null && idx.fields.stream().anyMatch(f -> f.getName().equals(field));
+    }
+
+    // =====================================================================
+    // Search
+    // =====================================================================
+
+    /** The outcome of one search: ids best first, and whether more rows matched than were returned. */
+    public static final class Hits {
+        static final Hits NONE = new Hits(Collections.emptyList(), false);
+
+        private final List<Object> ids;
+        private final boolean truncated;
+
+        Hits(List<Object> ids, boolean truncated) {
+            this.ids = Collections.unmodifiableList(ids);
+            this.truncated = truncated;
+        }
+
+        public List<Object> getIds() { return ids; }
+
+        /** More rows matched than max-hits: only the best max-hits are in {@link #getIds}. */
+        public boolean isTruncated() { return truncated; }
+    }
+
+    /**
+     * Ids of the rows whose {@code field} contains every token of {@code text}
+     * (the last one also as a prefix), best match first, at most max-hits. One
+     * pass on one searcher: the hit count comes from the same collector, counted
+     * just far enough to tell whether max-hits cut matches off.
+     */
+    public Hits search(String entity, String field, String text) {
+        EntityIndex idx = index(entity);
+        Query query = query(field, text);
+        if (query == null) {
+            return Hits.NONE;
+        }
+        Class<?> idType = idx.info.path(idx.info.getIdAttribute()).getJavaType();
+        return withSearcher(idx, searcher -> {
+            TopDocs top = searcher.search(query, TopScoreDocCollector.createSharedManager(maxHits, null, maxHits + 1));
+            StoredFields stored = searcher.storedFields();
+            List<Object> ids = new ArrayList<>(top.scoreDocs.length);
+            for (ScoreDoc sd : top.scoreDocs) {
+                ids.add(ValueCoercion.coerce(stored.document(sd.doc).get(ID), idType));
+            }
+            return new Hits(ids, top.totalHits.value > maxHits);
+        });
+    }
+
+    public int getMaxHits() {
+        return maxHits;
+    }
+
+    /** Null when {@code text} has no tokens. */
+    private Query query(String field, String text) {
+        List<String> tokens = tokens(field, text);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            query.add(new TermQuery(new Term(field, tokens.get(i))), BooleanClause.Occur.MUST);
+        }
+        // the last token may still be being typed: an exact match scores, a prefix match qualifies
+        Term last = new Term(field, tokens.get(tokens.size() - 1));
+        query.add(new BooleanQuery.Builder()
+                .add(new BoostQuery(new TermQuery(last), 2f), BooleanClause.Occur.SHOULD)
+                .add(new PrefixQuery(last), BooleanClause.Occur.SHOULD)
+                .build(), BooleanClause.Occur.MUST);
+        return query.build();
+    }
+
+    private interface SearcherWork<T> {
+        T run(IndexSearcher searcher) throws IOException;
+    }
+
+    private static <T> T withSearcher(EntityIndex idx, SearcherWork<T> work) {
+        try {
+            while (true) {
+                SearcherManager searchers = idx.current.searchers;
+                IndexSearcher searcher;
+                try {
+                    searcher = searchers.acquire();
+                } catch (AlreadyClosedException swapped) {
+                    continue;   // a rebuild just replaced this generation
+                }
+                try {
+                    return work.run(searcher);
+                } finally {
+                    searchers.release(searcher);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<String> tokens(String field, String text) {
+        List<String> out = new ArrayList<>();
+        try (TokenStream ts = analyzer.tokenStream(field, text)) {
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (ts.incrementToken()) {
+                out.add(term.toString());
+            }
+            ts.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out;
+    }
+
+    private EntityIndex index(String entity) {
+        EntityIndex idx = indexes.get(entity);
+        if (idx == null) {
+            throw new IllegalArgumentException("No full-text index on " + entity);
+        }
+        return idx;
+    }
+
+    // =====================================================================
+    // Maintenance
+    // =====================================================================
+
+    /** Called by the entity listener; the document is built now and applied after commit. */
+    void changed(Object entity, boolean removed) {
+        EntityIndex idx = indexes.get(entity.getClass().getSimpleName());
+        if (idx == null) return;
+        Object id = entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity);
+        Document doc = null;
+        if (!removed) {
+            Object[] values = new Object[idx.fields.size()];
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    values[i] = idx.fields.get(i).get(entity);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            doc = document(idx, id, values);
+        }
+        Document update = doc;
+        Change change = generation -> {
+            if (update == null) {
+                generation.writer.deleteDocuments(new Term(ID, id.toString()));
+            } else {
+                generation.writer.updateDocument(new Term(ID, id.toString()), update);
+            }
+        };
+        Runnable apply = () -> {
+            try {
+                synchronized (idx) {
+                    change.apply(idx.current);
+                    if (idx.duringRebuild != null) {
+                        idx.duringRebuild.add(change);   // the rebuild may have read the row before this write
+                    }
+                    idx.current.searchers.maybeRefresh();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildAll() {
+        for (String entity : indexes.keySet()) {
+            rebuild(entity);
+        }
+    }
+
+    /**
+     * Re-reads every row of {@code entity} into a new index; searches use the old one
+     * until the new one is complete. Writes committed while the table is read are
+     * replayed onto the new index before it is swapped in.
+     */
+    public void rebuild(String entity) {
+        EntityIndex idx = indexes.get(entity);
+        if (idx == null) return;
+        synchronized (idx.rebuildLock) {
+            rebuild(idx);
+        }
+    }
+
+    private void rebuild(EntityIndex idx) {
+        String entity = idx.info.getName();
+        synchronized (idx) {
+            idx.duringRebuild = new ArrayList<>();
+        }
+        StringBuilder jpql = new StringBuilder("select e.").append(idx.info.getIdAttribute());
+        for (Field f : idx.fields) {
+            jpql.append(", e.").append(f.getName());
+        }
+        jpql.append(" from ").append(entity).append(" e");
+
+        Generation fresh = null;
+        Generation old;
+        long count;
+        try {
+            Generation next = fresh = new Generation(analyzer);
+            TransactionTemplate tx = new TransactionTemplate(transactionManager);
+            tx.setReadOnly(true);
+            count = tx.execute(s -> {
+                try (Stream<Object[]> rows = entityManager.createQuery(jpql.toString(), Object[].class).getResultStream()) {
+                    long n = 0;
+                    for (Iterator<Object[]> it = rows.iterator(); it.hasNext(); n++) {
+                        Object[] row = it.next();
+                        next.writer.addDocument(document(idx, row[0], Arrays.copyOfRange(row, 1, row.length)));
+                    }
+                    return n;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            synchronized (idx) {
+                for (Change change : idx.duringRebuild) {
+                    change.apply(fresh);
+                }
+                fresh.searchers.maybeRefreshBlocking();
+                old = idx.current;
+                idx.current = fresh;
+                fresh = null;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            synchronized (idx) {
+                idx.duringRebuild = null;
+            }
+            closeQuietly(fresh);    // only left set when the rebuild failed
+        }
+        // searches still holding the old searcher keep their reader; new ones use the fresh index
+        closeQuietly(old);
+        log.info("Full-text index for {} rebuilt: {} rows", entity, count);
+    }
+
+    private static void closeQuietly(Generation generation) {
+        if (generation == null) return;
+        try {
+            generation.close();
+        } catch (IOException e) {
+            log.warn("Could not close a full-text index: {}", e.getMessage());
+        }
+    }
+
+    private static Document document(EntityIndex idx, Object id, Object[] values) {
+        Document doc = new Document();
+        doc.add(new StringField(ID, id.toString(), org.apache.lucene.document.Field.Store.YES));
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                doc.add(new TextField(idx.fields.get(i).getName(), values[i].toString(),
+                        org.apache.lucene.document.Field.Store.NO));
+            }
+        }
+        return doc;
+    }
+}
@@ -0,0 +1,654 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.dto.GenericRequest.AggregateSpec;
+import com.example.dynamicquery.dto.GenericRequest.SortSpec;
+import com.example.dynamicquery.dto.ProjectedRows;
+import com.example.dynamicquery.dto.RowSchema;
+import com.example.dynamicquery.service.ColumnarSnapshot.Column;
+import com.example.dynamicquery.service.ColumnarSnapshot.NumericColumn;
+import com.example.dynamicquery.service.ColumnarSnapshot.RowFilter;
+import com.example.dynamicquery.service.ColumnarSnapshot.RowOrder;
+import com.example.dynamicquery.service.EntityRegistry.AttributePath;
+import com.example.dynamicquery.service.EntityRegistry.EntityInfo;
+import org.hibernate.jpa.QueryHints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Answers /dynamic/fetch requests for the entities listed in
+ * {@code dynamic.snapshot.entities} from a {@link ColumnarSnapshot} instead of
+ * the database. A snapshot holds the entity's flat projection plus the basic
+ * attributes of its to-one associations ("department.name"). It is loaded when
+ * the application is ready. After that it follows the writes that
+ * {@link EntityChangeListener} reports: once a write commits, the touched rows are
+ * re-read before the next request is answered.
+ *
+ * <p>Supported: equals, {@code _like} and {@code _between} filters, sorting, distinct,
+ * every count mode, and groupBy with count, countDistinct, sum, avg, min and max.
+ * Ranges, sum, avg, min and max need a {@link NumericColumn}; on string columns
+ * they are left to the database and its collation.
+ * For anything else (other operators, keyset paging, having, explain, columns the
+ * snapshot lacks, values that don't coerce) {@link #fetch} returns null and the
+ * request takes the JPA path, which also reports any error.
+ */
+@Component
+public class SnapshotEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotEngine.class);
+
+    private static final int REFRESH_BATCH = 1000;
+
+    /** The snapshot of one entity, with the query that fills it and the writes not applied yet. */
+    private static final class Source {
+        final EntityInfo info;
+        final List<String> columns;
+        final String select;                            // "select ... from X e left join e.a j0 ..."
+        final Map<String, String> joinAliases;          // association -> alias in select
+        final Set<Object> pendingIds = ConcurrentHashMap.newKeySet();
+        final Map<String, Set<Object>> pendingTargets = new ConcurrentHashMap<>();   // association -> target ids
+        volatile ColumnarSnapshot snapshot;
+
+        Source(EntityInfo info, List<String> columns, String select, Map<String, String> joinAliases) {
+            this.info = info;
+            this.columns = columns;
+            this.select = select;
+            this.joinAliases = joinAliases;
+            for (String assoc : joinAliases.keySet()) {
+                pendingTargets.put(assoc, ConcurrentHashMap.newKeySet());
+            }
+        }
+
+        boolean hasPending() {
+            if (!pendingIds.isEmpty()) return true;
+            for (Set<Object> ids : pendingTargets.values()) {
+                if (!ids.isEmpty()) return true;
+            }
+            return false;
+        }
+    }
+
+    @Autowired
+    private EntityRegistry registry;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    @Qualifier("snapshotPool")
+    private ForkJoinPool pool;
+
+    @Value("${dynamic.snapshot.entities:}")
+    private Set<String> entities;
+
+    @Value("${dynamic.snapshot.min-rows-per-task:65536}")
+    private int minRowsPerTask;
+
+    private final Map<String, Source> sources = new HashMap<>();
+    // entity name -> (source, association) pairs whose rows show its columns
+    private final Map<String, List<Map.Entry<Source, String>>> dependents = new HashMap<>();
+    private TransactionTemplate readOnlyTx;
+
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        readOnlyTx = new TransactionTemplate(transactionManager);
+        readOnlyTx.setReadOnly(true);
+        for (String name : entities) {
+            EntityInfo info = registry.entity(name);
+            if (ColumnarSnapshot.columnFor(info.getIdAttribute(), info.path(info.getIdAttribute()).getJavaType()) == null) {
+                log.warn("No snapshot for {}: unsupported id type", name);
+                continue;
+            }
+            Source source = source(info);
+            sources.put(name, source);
+            for (String assoc : source.joinAliases.keySet()) {
+                String target = registry.entity(info.path(assoc).getJavaType()).getName();
+                dependents.computeIfAbsent(target, k -> new ArrayList<>()).add(new AbstractMap.SimpleEntry<>(source, assoc));
+            }
+        }
+    }
+
+    /** Columns of supported types: the flat projection, then every basic attribute of each to-one association. */
+    private Source source(EntityInfo info) {
+        List<String> columns = new ArrayList<>();
+        for (String attr : info.getFlatAttributes()) {
+            if (ColumnarSnapshot.columnFor(attr, info.path(attr).getJavaType()) != null) {
+                columns.add(attr);
+            }
+        }
+        Map<String, String> aliases = new LinkedHashMap<>();
+        StringBuilder select = new StringBuilder("select ");
+        StringBuilder joins = new StringBuilder();
+        for (String attr : info.getFlatAttributes()) {
+            AttributePath p = info.path(attr);
+            if (!p.foreignKey) continue;
+            String assoc = p.segments[0];
+            EntityInfo target = registry.entity(info.path(assoc).getJavaType());
+            for (String targetAttr : target.getBasicAttributes()) {
+                String column = assoc + "." + targetAttr;
+                if (!targetAttr.equals(target.getIdAttribute())
+                        && ColumnarSnapshot.columnFor(column, target.path(targetAttr).getJavaType()) != null) {
+                    columns.add(column);
+                    aliases.computeIfAbsent(assoc, a -> "j" + aliases.size());
+                }
+            }
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            AttributePath p = info.path(columns.get(i));
+            if (i > 0) select.append(", ");
+            // association ids come from the foreign key column, the other association columns from the join
+            select.append(p.segments.length == 1 || p.foreignKey ? "e." + p.path
+                    : aliases.get(p.segments[0]) + "." + p.segments[1]);
+        }
+        select.append(" from ").append(info.getJavaType().getName()).append(" e");
+        aliases.forEach((assoc, alias) -> joins.append(" left join e.").append(assoc).append(' ').append(alias));
+        select.append(joins);
+        return new Source(info, columns, select.toString(), aliases);
+    }
+
+    public boolean covers(String entity) {
+        return entity != null && sources.containsKey(entity);
+    }
+
+    // =====================================================================
+    // Loading and maintenance
+    // =====================================================================
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadAll() {
+        for (Source source : sources.values()) {
+            load(source);
+        }
+    }
+
+    /** Re-reads every row of {@code entity} after writes that bypassed JPA; no-op before the initial load. */
+    public void reload(String entity) {
+        Source source = sources.get(entity);
+        if (source != null && source.snapshot != null) {
+            load(source);
+        }
+    }
+
+    private void load(Source source) {
+        long started = System.nanoTime();
+        List<Column> columns = new ArrayList<>();
+        for (String c : source.columns) {
+            columns.add(ColumnarSnapshot.columnFor(c, source.info.path(c).getJavaType()));
+        }
+        ColumnarSnapshot snapshot = new ColumnarSnapshot(source.info.getName(), columns);
+        synchronized (source) {
+            readOnlyTx.executeWithoutResult(s -> {
+                String jpql = source.select + " order by e." + source.info.getIdAttribute();
+                try (Stream<Object[]> rows = entityManager.createQuery(jpql, Object[].class)
+                        .setHint(QueryHints.HINT_FETCH_SIZE, 1000)
+                        .setHint(QueryHints.HINT_READONLY, true)
+                        .getResultStream()) {
+                    List<Object[]> batch = new ArrayList<>(REFRESH_BATCH);
+                    for (Iterator<Object[]> it = rows.iterator(); it.hasNext(); ) {
+                        batch.add(it.next());
+                        if (batch.size() == REFRESH_BATCH) {
+                            snapshot.apply(batch, Collections.emptyList());
+                            batch.clear();
+                        }
+                    }
+                    snapshot.apply(batch, Collections.emptyList());
+                }
+            });
+            // writes committed while loading are re-read into the new snapshot by the next refresh
+            source.snapshot = snapshot;
+        }
+        log.info("Columnar snapshot of {} loaded: {} rows, {} columns in {} ms", source.info.getName(),
+                snapshot.liveRows(), columns.size(), (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /** Called by the entity listener; the row ids are queued once the transaction commits. */
+    void changed(Object entity) {
+        String name = entity.getClass().getSimpleName();
+        Source root = sources.get(name);
+        List<Map.Entry<Source, String>> deps = dependents.get(name);
+        if (root == null && deps == null) return;
+        Object id = entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity);
+        Runnable queue = () -> {
+            if (root != null) {
+                root.pendingIds.add(id);
+            }
+            if (deps != null) {
+                for (Map.Entry<Source, String> d : deps) {
+                    d.getKey().pendingTargets.get(d.getValue()).add(id);
+                }
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    queue.run();
+                }
+            });
+        } else {
+            queue.run();
+        }
+    }
+
+    /**
+     * Re-reads the rows touched by committed writes: by id for the entity itself,
+     * by association for its targets (a renamed department changes every row
+     * pointing at it). Ids that no longer come back were deleted.
+     */
+    private void refresh(Source source) {
+        if (!source.hasPending()) return;
+        synchronized (source) {
+            List<Object> ids = drain(source.pendingIds);
+            List<Object[]> rows = new ArrayList<>();
+            readOnlyTx.executeWithoutResult(s -> {
+                rows.addAll(read(source.select + " where e." + source.info.getIdAttribute() + " in :ids", ids));
+                source.joinAliases.forEach((assoc, alias) -> {
+                    String targetId = registry.entity(source.info.path(assoc).getJavaType()).getIdAttribute();
+                    rows.addAll(read(source.select + " where " + alias + "." + targetId + " in :ids",
+                            drain(source.pendingTargets.get(assoc))));
+                });
+            });
+            Set<Object> removed = new HashSet<>(ids);
+            for (Object[] row : rows) {
+                removed.remove(row[0]);
+            }
+            source.snapshot.apply(rows, removed);
+        }
+    }
+
+    private List<Object[]> read(String jpql, List<Object> ids) {
+        List<Object[]> rows = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += REFRESH_BATCH) {
+            rows.addAll(entityManager.createQuery(jpql, Object[].class)
+                    .setParameter("ids", ids.subList(from, Math.min(ids.size(), from + REFRESH_BATCH)))
+                    .setHint(QueryHints.HINT_READONLY, true)
+                    .getResultList());
+        }
+        return rows;
+    }
+
+    private static List<Object> drain(Set<Object> pending) {
+        List<Object> out = new ArrayList<>();
+        for (Iterator<Object> it = pending.iterator(); it.hasNext(); ) {
+            out.add(it.next());
+            it.remove();
+        }
+        return out;
+    }
+
+    // =====================================================================
+    // Queries
+    // =====================================================================
+
+    /**
+     * The response for {@code request}, shaped like the JPA path's, or null when the
+     * snapshot cannot answer it. {@code columns} are the output columns (projection
+     * or groupBy + aggregate aliases), {@code sorts} the parsed sort keys.
+     */
+    Map<String, Object> fetch(GenericRequest request, List<String> columns, List<SortSpec> sorts) {
+        Source source = sources.get(request.getEntity());
+        if (source == null || source.snapshot == null
+                || request.isExport() || request.isKeyset() || request.isExplain()
+                || (request.isAggregate() && request.getHaving() != null && !request.getHaving().isEmpty())) {
+            return null;
+        }
+        refresh(source);
+        ColumnarSnapshot snapshot = source.snapshot;
+        Map<String, Object> resp = null;
+        snapshot.lock.readLock().lock();
+        try {
+            List<RowFilter> filters = filters(snapshot, request.getFilters());
+            if (filters != null) {
+                resp = request.isAggregate()
+                        ? aggregate(snapshot, request, columns, sorts, filters)
+                        : rows(snapshot, request, columns, sorts, filters);
+            }
+        } finally {
+            snapshot.lock.readLock().unlock();
+        }
+        (resp != null ? answered : fallbacks).incrementAndGet();
+        return resp;
+    }
+
+    /** Filters compiled against the snapshot; null if any of them is not supported. */
+    private static List<RowFilter> filters(ColumnarSnapshot snapshot, Map<String, Object> filters) {
+        List<RowFilter> out = new ArrayList<>();
+        if (filters == null) return out;
+        try {
+            for (Map.Entry<String, Object> e : filters.entrySet()) {
+                String key = e.getKey();
+                Object val = e.getValue();
+                RowFilter f;
+                if (key.endsWith("_like")) {
+                    Column c = snapshot.column(key.substring(0, key.length() - "_like".length()));
+                    String text = val != null ? val.toString() : null;
+                    // LIKE wildcards and escapes in the value keep their SQL meaning: leave those to the database
+                    if (c == null || text == null || text.matches(".*[%_\\\\].*")) return null;
+                    f = c.contains(text);
+                } else if (key.endsWith("_between")) {
+                    if (!RequestKeys.isRange(val)) continue;   // ignored by the compiler as well
+                    Column c = snapshot.column(key.substring(0, key.length() - "_between".length()));
+                    if (!(c instanceof NumericColumn)) return null;
+                    Object from = coerce(((List<?>) val).get(0), c);
+                    Object to = coerce(((List<?>) val).get(1), c);
+                    if (from == null || to == null) return null;
+                    f = ((NumericColumn) c).between(from, to);
+                } else {
+                    Column c = snapshot.column(key);
+                    Object v = c != null ? coerce(val, c) : null;
+                    if (v == null) return null;
+                    f = c.equalTo(v);
+                }
+                if (f == null) return null;
+                out.add(f);
+            }
+        } catch (RuntimeException e) {
+            return null;   // e.g. a value that doesn't parse as the column type
+        }
+        return out;
+    }
+
+    private static Object coerce(Object value, Column c) {
+        Object v = ValueCoercion.coerce(value, c.type);
+        return c.type.isInstance(v) ? v : null;
+    }
+
+    private Map<String, Object> rows(ColumnarSnapshot snapshot, GenericRequest request, List<String> columns,
+                                     List<SortSpec> sorts, List<RowFilter> filters) {
+        Column[] cols = columns(snapshot, columns);
+        RowOrder order = order(snapshot, sorts);
+        if (cols == null || order == null) return null;
+        if (request.isDistinct()) {
+            for (SortSpec s : sorts) {
+                // the database refuses ORDER BY columns outside a DISTINCT select list
+                if (!columns.contains(s.getField())) return null;
+            }
+        }
+
+        int[] sel = snapshot.select(filters, pool, minRowsPerTask);
+        int offset = request.getPage() * request.getSize();
+        int limit = request.getSize() + 1;      // one extra row tells whether there is a next page
+        List<Object[]> rows = new ArrayList<>(Math.min(request.getSize(), sel.length));
+        long total;
+        boolean hasNext;
+        if (request.isDistinct()) {
+            int[] ordered = sorts.isEmpty() ? sel : ColumnarSnapshot.top(sel, sel.length, order);
+            Set<List<Object>> distinct = new LinkedHashSet<>();
+            for (int r : ordered) {
+                distinct.add(Arrays.asList(values(cols, r)));
+            }
+            int i = 0;
+            for (List<Object> row : distinct) {
+                if (i >= offset && i < offset + request.getSize()) rows.add(row.toArray());
+                i++;
+            }
+            hasNext = distinct.size() > offset + request.getSize();
+            // same total as the count query: distinct values of a single field, otherwise matching rows
+            if (request.getFields() != null && request.getFields().size() == 1) {
+                total = distinct.stream().filter(row -> row.get(0) != null).count();
+            } else {
+                total = sel.length;
+            }
+        } else {
+            int[] ordered = sorts.isEmpty() ? sel : ColumnarSnapshot.top(sel, offset + limit, order);
+            for (int i = offset; i < Math.min(ordered.length, offset + request.getSize()); i++) {
+                rows.add(values(cols, ordered[i]));
+            }
+            hasNext = ordered.length > offset + request.getSize();
+            total = sel.length;
+        }
+        return response(request, columns, rows, total, hasNext);
+    }
+
+    private Map<String, Object> aggregate(ColumnarSnapshot snapshot, GenericRequest request, List<String> columns,
+                                          List<SortSpec> sorts, List<RowFilter> filters) {
+        if (request.getFields() != null && !request.getFields().isEmpty()) return null;
+        List<String> groupBy = request.getGroupBy() != null ? request.getGroupBy() : Collections.emptyList();
+        Column[] groups = columns(snapshot, groupBy);
+        List<AggregateSpec> specs = request.getAggregates() != null ? request.getAggregates() : Collections.emptyList();
+        String[] functions = new String[specs.size()];
+        Column[] fields = new Column[specs.size()];
+        for (int i = 0; i < functions.length; i++) {
+            AggregateSpec a = specs.get(i);
+            functions[i] = a.getFunction() == null ? "" : a.getFunction().toLowerCase();
+            fields[i] = a.getField() != null ? snapshot.column(a.getField()) : null;
+            boolean ordered = fields[i] instanceof NumericColumn;
+            boolean numeric = ordered && fields[i].isNumeric();
+            boolean supported;
+            switch (functions[i]) {
+                case "count":
+                    supported = a.getField() == null || fields[i] != null;
+                    break;
+                case "countdistinct":
+                    supported = fields[i] != null;
+                    break;
+                case "min":
+                case "max":
+                    supported = ordered;
+                    break;
+                case "sum":
+                case "avg":
+                    supported = numeric;
+                    break;
+                default:
+                    supported = false;
+            }
+            if (!supported) return null;
+        }
+        if (groups == null) return null;
+        int[] sortColumns = new int[sorts.size()];
+        for (int i = 0; i < sortColumns.length; i++) {
+            sortColumns[i] = columns.indexOf(sorts.get(i).getField());
+            if (sortColumns[i] < 0) return null;
+        }
+
+        // one accumulator row per group, in order of first appearance
+        int[] sel = snapshot.select(filters, pool, minRowsPerTask);
+        Map<Object, Accumulator[]> byGroup = new LinkedHashMap<>();
+        if (groups.length == 0) {
+            byGroup.put(Collections.emptyList(), accumulators(functions.length));
+        }
+        for (int r : sel) {
+            Object key = groups.length == 1 ? groups[0].get(r) : Arrays.asList(values(groups, r));
+            Accumulator[] accs = byGroup.computeIfAbsent(key, k -> accumulators(functions.length));
+            for (int i = 0; i < accs.length; i++) {
+                accs[i].add(fields[i], r, functions[i]);
+            }
+        }
+
+        List<Object[]> all = new ArrayList<>(byGroup.size());
+        byGroup.forEach((key, accs) -> {
+            Object[] row = new Object[columns.size()];
+            if (groups.length == 1) {
+                row[0] = key;
+            } else {
+                List<?> values = (List<?>) key;
+                for (int i = 0; i < groups.length; i++) row[i] = values.get(i);
+            }
+            for (int i = 0; i < accs.length; i++) {
+                row[groups.length + i] = accs[i].result(fields[i], functions[i]);
+            }
+            all.add(row);
+        });
+        if (sortColumns.length > 0) {
+            all.sort((a, b) -> {
+                for (int i = 0; i < sortColumns.length; i++) {
+                    int c = compareValues(a[sortColumns[i]], b[sortColumns[i]]);
+                    if (c != 0) return isDesc(sorts.get(i)) ? -c : c;
+                }
+                return 0;
+            });
+        }
+        int offset = request.getPage() * request.getSize();
+        List<Object[]> rows = offset < all.size()
+                ? all.subList(offset, Math.min(all.size(), offset + request.getSize()))
+                : Collections.emptyList();
+        return response(request, columns, new ArrayList<>(rows), all.size(),
+                all.size() > offset + request.getSize());
+    }
+
+    /** Running state of one aggregate within one group. */
+    private static final class Accumulator {
+        long rows;          // rows in the group
+        long count;         // non-null values
+        long longSum;
+        double doubleSum;
+        int min = -1;
+        int max = -1;
+        Set<Object> distinct;
+
+        void add(Column c, int r, String function) {
+            rows++;
+            if (c == null || c.isNull(r)) return;
+            count++;
+            switch (function) {
+                case "sum":
+                case "avg":
+                    if (c instanceof ColumnarSnapshot.DoubleColumn) doubleSum += ((NumericColumn) c).doubleValue(r);
+                    else longSum += ((NumericColumn) c).longValue(r);
+                    break;
+                case "min":
+                    if (min < 0 || c.compare(r, min) < 0) min = r;
+                    break;
+                case "max":
+                    if (max < 0 || c.compare(r, max) > 0) max = r;
+                    break;
+                case "countdistinct":
+                    if (distinct == null) distinct = new HashSet<>();
+                    distinct.add(c.get(r));
+                    break;
+                default:
+            }
+        }
+
+        Object result(Column c, String function) {
+            boolean floating = c instanceof ColumnarSnapshot.DoubleColumn;
+            switch (function) {
+                case "count":
+                    return c == null ? rows : count;
+                case "countdistinct":
+                    return distinct == null ? 0L : (long) distinct.size();
+                case "sum":
+                    return count == 0 ? null : floating ? (Object) doubleSum : (Object) longSum;
+                case "avg":
+                    return count == 0 ? null : (floating ? doubleSum : (double) longSum) / count;
+                case "min":
+                    return min < 0 ? null : c.get(min);
+                default:
+                    return max < 0 ? null : c.get(max);
+            }
+        }
+    }
+
+    private static Accumulator[] accumulators(int n) {
+        Accumulator[] accs = new Accumulator[n];
+        for (int i = 0; i < n; i++) accs[i] = new Accumulator();
+        return accs;
+    }
+
+    private Map<String, Object> response(GenericRequest request, List<String> columns, List<Object[]> rows,
+                                         long total, boolean hasNext) {
+        boolean counted = !"none".equalsIgnoreCase(request.getCountMode());
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("content", new ProjectedRows(new RowSchema(columns), rows, request.isColumnar()));
+        resp.put("size", request.getSize());
+        resp.put("page", request.getPage());
+        if (counted) {
+            resp.put("totalElements", total);
+            resp.put("totalPages", (int) Math.ceil((double) total / request.getSize()));
+        } else {
+            resp.put("hasNext", hasNext);
+        }
+        resp.put("source", "snapshot");
+        return resp;
+    }
+
+    private static Column[] columns(ColumnarSnapshot snapshot, List<String> names) {
+        Column[] cols = new Column[names.size()];
+        for (int i = 0; i < cols.length; i++) {
+            cols[i] = snapshot.column(names.get(i));
+            if (cols[i] == null) return null;
+        }
+        return cols;
+    }
+
+    private static RowOrder order(ColumnarSnapshot snapshot, List<SortSpec> sorts) {
+        Column[] keys = new Column[sorts.size()];
+        boolean[] desc = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = snapshot.column(sorts.get(i).getField());
+            if (keys[i] == null) return null;
+            desc[i] = isDesc(sorts.get(i));
+        }
+        return (a, b) -> {
+            for (int i = 0; i < keys.length; i++) {
+                int c = keys[i].compare(a, b);
+                if (c != 0) return desc[i] ? -c : c;
+            }
+            return 0;
+        };
+    }
+
+    private static Object[] values(Column[] cols, int row) {
+        Object[] values = new Object[cols.length];
+        for (int i = 0; i < cols.length; i++) {
+            values[i] = cols[i].get(row);
+        }
+        return values;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b ? 0 : a == null ? -1 : 1;
+        }
+        return ((Comparable) a).compareTo(b);
+    }
+
+    private static boolean isDesc(SortSpec spec) {
+        return "desc".equalsIgnoreCase(spec.getDirection());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> s = new LinkedHashMap<>();
+        Map<String, Object> rows = new LinkedHashMap<>();
+        sources.forEach((name, source) -> {
+            ColumnarSnapshot snapshot = source.snapshot;
+            rows.put(name, snapshot != null ? snapshot.liveRows() : null);
+        });
+        s.put("rows", rows);
+        s.put("answered", answered.get());
+        s.put("fallbacks", fallbacks.get());
+        return s;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.dynamicquery.service;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Hibernate statement inspector that records the SQL the current thread sends
+ * while a capture is active, so explain=true requests can ask the database for
+ * the plan of exactly those statements. Registered through
+ * {@code hibernate.session_factory.statement_inspector}; a no-op otherwise.
+ */
+public class SqlCapture implements StatementInspector {
+
+    private static final ThreadLocal<List<String>> SINK = new ThreadLocal<>();
+
+    /** Runs {@code work}, appending every statement it prepares on this thread to {@code into} (if not null). */
+    static <T> T capture(List<String> into, Supplier<T> work) {
+        if (into == null) {
+            return work.get();
+        }
+        List<String> previous = SINK.get();
+        SINK.set(into);
+        try {
+            return work.get();
+        } finally {
+            if (previous != null) SINK.set(previous); else SINK.remove();
+        }
+    }
+
+    @Override
+    public String inspect(String sql) {
+        List<String> sink = SINK.get();
+        if (sink != null) {
+            sink.add(sql);
+        }
+        return sql;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.dynamicquery.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Results of {@code _inSubquery} lookups, keyed by the subquery spec with its
+ * filter values: the values to inline as an IN list, or null when the subquery
+ * returned too many rows to inline (which is remembered too, so large subqueries
+ * are not probed on every request). Entries expire after a TTL and are ignored
+ * as soon as any entity the subquery reads has been written.
+ */
+@Component
+public class SubqueryCache {
+
+    @Autowired
+    private EntityChangeTracker tracker;
+
+    @Value("${dynamic.query.subquery-cache.max-size:1000}")
+    private int maxSize;
+
+    @Value("${dynamic.query.subquery-cache.ttl-ms:60000}")
+    private long ttlMs;
+
+    private VersionedCache<List<Object>> results;
+
+    @PostConstruct
+    void init() {
+        results = new VersionedCache<>(maxSize, ttlMs, tracker, false);
+    }
+
+    List<Object> get(String key, List<String> entities, Supplier<List<Object>> loader) {
+        return results.get(key, entities, () -> {
+            List<Object> values = loader.get();
+            return values != null ? Collections.unmodifiableList(values) : null;
+        });
+    }
+
+    public Map<String, Object> stats() {
+        return results.stats();
+    }
+}
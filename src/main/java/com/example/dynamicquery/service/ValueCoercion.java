@@ -0,0 +1,61 @@
+package com.example.dynamicquery.service;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Converts JSON-decoded filter values (numbers, strings, booleans) to the Java
+ * type of the attribute they are compared with, so they can be bound to typed
+ * query parameters.
+ */
+final class ValueCoercion {
+
+    private ValueCoercion() {}
+
+    static Object coerce(Object value, Class<?> type) {
+        if (value == null || type == null || type.isInstance(value)) return value;
+        Class<?> t = box(type);
+        if (t.isInstance(value)) return value;
+
+        if (value instanceof Number) {
+            Number n = (Number) value;
+            if (t == Long.class) return n.longValue();
+            if (t == Integer.class) return n.intValue();
+            if (t == Double.class) return n.doubleValue();
+            if (t == Float.class) return n.floatValue();
+            if (t == Short.class) return n.shortValue();
+            if (t == BigDecimal.class) return new BigDecimal(n.toString());
+            if (t == BigInteger.class) return BigInteger.valueOf(n.longValue());
+            if (t == String.class) return n.toString();
+            return value;
+        }
+
+        String s = value.toString();
+        if (t == String.class) return s;
+        if (t == Long.class) return Long.valueOf(s);
+        if (t == Integer.class) return Integer.valueOf(s);
+        if (t == Double.class) return Double.valueOf(s);
+        if (t == Float.class) return Float.valueOf(s);
+        if (t == Short.class) return Short.valueOf(s);
+        if (t == BigDecimal.class) return new BigDecimal(s);
+        if (t == Boolean.class) return Boolean.valueOf(s);
+        if (t == LocalDate.class) return LocalDate.parse(s);
+        if (t == LocalDateTime.class) return LocalDateTime.parse(s);
+        return value;
+    }
+
+    static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == long.class) return Long.class;
+        if (type == int.class) return Integer.class;
+        if (type == double.class) return Double.class;
+        if (type == float.class) return Float.class;
+        if (type == short.class) return Short.class;
+        if (type == boolean.class) return Boolean.class;
+        if (type == byte.class) return Byte.class;
+        if (type == char.class) return Character.class;
+        return type;
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.dynamicquery.service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * The bounded LRU behind the query caches. An entry expires after {@code ttlMs}
+ * (never when it is 0) and, with a tracker, is ignored as soon as any entity
+ * passed with it has been written (see {@link EntityChangeTracker}). Loading
+ * happens outside the lock; with {@code coalesce}, concurrent misses on the same
+ * key wait for the first load instead of each running it, otherwise they all
+ * load and the last one wins.
+ */
+final class VersionedCache<V> {
+
+    private static final class Entry<V> {
+        final V value;
+        final long expiresAt;
+        final long[] versions;
+
+        Entry(V value, long expiresAt, long[] versions) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.versions = versions;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlMs;
+    private final EntityChangeTracker tracker;
+    private final boolean coalesce;
+
+    private final Map<String, Entry<V>> entries;
+    private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    VersionedCache(int maxSize, long ttlMs, EntityChangeTracker tracker, boolean coalesce) {
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        this.tracker = tracker;
+        this.coalesce = coalesce;
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                if (size() > VersionedCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    V get(String key, List<String> entities, Supplier<V> loader) {
+        return get(key, entities, loader, v -> true);
+    }
+
+    /** The cached value for {@code key}, or the loader's; loaded values failing {@code keep} are handed out but not kept. */
+    V get(String key, List<String> entities, Supplier<V> loader, Predicate<? super V> keep) {
+        Entry<V> e = entries.get(key);
+        if (e != null) {
+            if (e.expiresAt > System.currentTimeMillis() && Arrays.equals(e.versions, versions(entities))) {
+                hits.incrementAndGet();
+                return e.value;
+            }
+            invalidations.incrementAndGet();
+            entries.remove(key, e);
+        }
+
+        CompletableFuture<V> mine = null;
+        if (coalesce) {
+            mine = new CompletableFuture<>();
+            CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+            if (running != null) {
+                coalesced.incrementAndGet();
+                try {
+                    return running.join();
+                } catch (CompletionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+                    throw ex;
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            // read the versions before loading: a write racing with the load leaves the entry stale, not wrong
+            long[] versions = versions(entities);
+            long expiresAt = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : Long.MAX_VALUE;
+            V value = loader.get();
+            if (keep.test(value)) {
+                entries.put(key, new Entry<>(value, expiresAt, versions));
+            }
+            if (mine != null) mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error ex) {
+            if (mine != null) mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            if (mine != null) inFlight.remove(key, mine);
+        }
+    }
+
+    private long[] versions(List<String> entities) {
+        return tracker != null ? tracker.versions(entities) : null;
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    Map<String, Object> stats() {
+        long h = hits.get();
+        long m = misses.get();
+        long c = coalesced.get();
+        Map<String, Object> s = new LinkedHashMap<>();
+        s.put("size", entries.size());
+        s.put("maxSize", maxSize);
+        if (ttlMs > 0) s.put("ttlMs", ttlMs);
+        s.put("hits", h);
+        s.put("misses", m);
+        if (coalesce) s.put("coalesced", c);
+        s.put("evictions", evictions.get());
+        if (ttlMs > 0 || tracker != null) s.put("invalidations", invalidations.get());
+        s.put("hitRate", h + m + c == 0 ? 0.0 : (double) (h + c) / (h + m + c));
+        return s;
+    }
+}
@@ -14,7 +14,7 @@
     sort: '',     // legacy single sort
     sorts: [],    // multi-sort
     distinct: false,
-    lastExportPath: null
+    lastExportUrl: null
   };
 
   const entitySelect = document.getElementById('entitySelect');
@@ -197,6 +197,18 @@
     };
   }
 
+  async function awaitExport(job) {
+    while (job.status === 'QUEUED' || job.status === 'RUNNING') {
+      const pct = job.progress != null ? ' ' + Math.round(job.progress * 100) + '%' : '';
+      tableArea.innerHTML = '<em>Exporting (' + job.status.toLowerCase() + pct + ')...</em>';
+      await new Promise(r => setTimeout(r, 1000));
+      const res = await fetch('/dynamic/export/jobs/' + encodeURIComponent(job.jobId));
+      if (!res.ok) throw new Error('Server error: ' + res.status);
+      job = await res.json();
+    }
+    return job;
+  }
+
   async function doFetch(exportMode=false) {
     const payload = buildPayload(exportMode);
     tableArea.innerHTML = '<em>Loading...</em>';
@@ -210,14 +222,17 @@
       const data = await res.json();
 
       if (exportMode) {
-        if (data.file) {
-          state.lastExportPath = data.file;
+        // export=true queues a job; poll it until the file is ready
+        const job = await awaitExport(data);
+        if (job.status === 'DONE') {
+          state.lastExportUrl = job.download;
           downloadBtn.style.display = 'inline-block';
-          alert('Export ready: ' + data.file + '\nClick Download to fetch the file.');
+          alert('Export ready: ' + job.rowsWritten + ' rows, ' + job.bytes + ' bytes\nClick Download to fetch the file.');
+          tableArea.innerHTML = '<em>Export finished</em>';
         } else {
-          alert('Export response: ' + JSON.stringify(data));
+          alert('Export ' + job.status.toLowerCase() + (job.error ? ': ' + job.error : ''));
+          tableArea.innerHTML = '<em>Export ' + job.status.toLowerCase() + '</em>';
         }
-        tableArea.innerHTML = '<em>Export finished</em>';
         return;
       }
 
@@ -302,12 +317,11 @@
   });
 
   downloadBtn.addEventListener('click', ()=>{
-    if (!state.lastExportPath) {
+    if (!state.lastExportUrl) {
       alert('No export');
       return;
     }
-    const url = '/dynamic/download?filePath=' + encodeURIComponent(state.lastExportPath);
-    window.open(url, '_blank');
+    window.open(state.lastExportUrl, '_blank');
   });
 
   prevPage.addEventListener('click', ()=>{
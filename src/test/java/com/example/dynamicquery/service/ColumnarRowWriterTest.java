@@ -0,0 +1,168 @@
+package com.example.dynamicquery.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Writes rows with {@link ColumnarRowWriter} and reads them back with a decoder
+ * following the format in its class comment.
+ */
+class ColumnarRowWriterTest {
+
+    private static final List<String> HEADERS = Arrays.asList("id", "salary", "active", "hired", "name", "dept", "mixed", "empty");
+
+    @Test
+    void roundTripsEveryColumnTypeAcrossRowGroups() throws IOException {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 23; i++) {
+            rows.add(new Object[]{
+                    i % 5 == 0 ? null : (long) (1000 - i * 37),         // negative deltas
+                    i % 4 == 0 ? null : i * 1.5 - 7,
+                    i % 3 == 0 ? null : i % 2 == 0,
+                    i % 6 == 0 ? null : LocalDate.of(2020, 1, 1).plusDays(i * 11L - 100),
+                    i % 7 == 0 ? null : "émployé-" + i + "-東",      // distinct: plain text
+                    i % 8 == 0 ? null : "dept-" + (i % 2),              // repeats: dictionary
+                    i % 2 == 0 ? (Object) i : "s" + i,                  // mixed within a group: written as text
+                    null
+            });
+        }
+        rows.add(new Object[]{Long.MIN_VALUE, Double.NaN, true, LocalDate.MIN, "", "dept-0", Integer.MAX_VALUE, null});
+        rows.add(new Object[]{Long.MAX_VALUE, -0.0, false, LocalDate.MAX, "x", "dept-1", "last", null});
+
+        List<Object[]> read = read(write(rows, 4), HEADERS);
+
+        assertThat(read).hasSize(rows.size());
+        for (int r = 0; r < rows.size(); r++) {
+            Object[] expected = rows.get(r).clone();
+            if (expected[0] != null) expected[0] = ((Number) expected[0]).longValue();
+            if (expected[6] != null) expected[6] = expected[6].toString();
+            assertThat(read.get(r)).as("row %d", r).containsExactly(expected);
+        }
+    }
+
+    @Test
+    void writesOnlyHeadersForNoRows() throws IOException {
+        assertThat(read(write(new ArrayList<>(), 8), HEADERS)).isEmpty();
+    }
+
+    @Test
+    void integralTypesReadBackAsLong() throws IOException {
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[]{(byte) 1, (short) 2, 3, 4L});
+        List<Object[]> read = read(write(rows, 8, Arrays.asList("b", "s", "i", "l")), Arrays.asList("b", "s", "i", "l"));
+        assertThat(read.get(0)).containsExactly(1L, 2L, 3L, 4L);
+    }
+
+    private static byte[] write(List<Object[]> rows, int rowGroupSize) throws IOException {
+        return write(rows, rowGroupSize, HEADERS);
+    }
+
+    private static byte[] write(List<Object[]> rows, int rowGroupSize, List<String> headers) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ColumnarRowWriter writer = new ColumnarRowWriter(bytes, headers, rowGroupSize);
+        for (Object[] row : rows) {
+            writer.handle(row);
+        }
+        writer.finish();
+        return bytes.toByteArray();
+    }
+
+    // ===== decoder =====
+
+    private static List<Object[]> read(byte[] file, List<String> headers) throws IOException {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(file)));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertThat(magic).isEqualTo(ColumnarRowWriter.MAGIC);
+        int columns = in.readInt();
+        List<String> names = new ArrayList<>();
+        for (int c = 0; c < columns; c++) {
+            names.add(in.readUTF());
+        }
+        assertThat(names).isEqualTo(headers);
+
+        List<Object[]> rows = new ArrayList<>();
+        for (int count = in.readInt(); count != 0; count = in.readInt()) {
+            Object[][] group = new Object[count][columns];
+            for (int c = 0; c < columns; c++) {
+                readColumn(in, group, c);
+            }
+            rows.addAll(Arrays.asList(group));
+        }
+        assertThat(in.read()).as("nothing after the end marker").isEqualTo(-1);
+        return rows;
+    }
+
+    private static void readColumn(DataInputStream in, Object[][] group, int c) throws IOException {
+        byte type = in.readByte();
+        if (type == 'N') {
+            return;
+        }
+        byte[] nulls = new byte[(group.length + 7) / 8];
+        in.readFully(nulls);
+        List<String> dictionary = new ArrayList<>();
+        if (type == 'E') {
+            for (long n = readVarLong(in); n > 0; n--) {
+                dictionary.add(readString(in));
+            }
+        }
+        long previous = 0;
+        for (int r = 0; r < group.length; r++) {
+            if ((nulls[r >> 3] & (1 << (r & 7))) != 0) {
+                continue;
+            }
+            switch (type) {
+                case 'L':
+                case 'T': {
+                    long v = readVarLong(in);
+                    previous += (v >>> 1) ^ -(v & 1);
+                    group[r][c] = type == 'T' ? LocalDate.ofEpochDay(previous) : (Object) previous;
+                    break;
+                }
+                case 'D':
+                    group[r][c] = in.readDouble();
+                    break;
+                case 'B':
+                    group[r][c] = in.readBoolean();
+                    break;
+                case 'S':
+                    group[r][c] = readString(in);
+                    break;
+                case 'E':
+                    group[r][c] = dictionary.get((int) readVarLong(in));
+                    break;
+                default:
+                    throw new AssertionError("unknown column type " + (char) type);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+}
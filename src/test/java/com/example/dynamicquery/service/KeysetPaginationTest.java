@@ -0,0 +1,97 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.model.Department;
+import com.example.dynamicquery.model.Employee;
+import com.example.dynamicquery.repository.DepartmentRepository;
+import com.example.dynamicquery.repository.EmployeeRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Walks every keyset page of orderings over nullable columns and expects the rows
+ * of a single offset page with the same ordering, null sort keys included.
+ */
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:keyset;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class KeysetPaginationTest {
+
+    @Autowired
+    private GenericQueryService queries;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private EmployeeRepository employees;
+
+    @Autowired
+    private DepartmentRepository departments;
+
+    /** Runs of rows with null salaries, names, dates and departments, long enough to span page boundaries. */
+    @BeforeAll
+    void addRowsWithNulls() {
+        Department empty = departments.save(new Department("Empty"));
+        List<Employee> rows = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            rows.add(new Employee(i % 3 == 0 ? null : "Null " + (i % 4), null,
+                    i % 2 == 0 ? null : LocalDate.of(2020, 1, 1 + i % 3), i % 4 == 0 ? null : empty, i % 5 == 0 ? null : true));
+        }
+        employees.saveAll(rows);
+    }
+
+    @Test
+    void seeksPastNullSortKeys() throws IOException {
+        assertKeysetMatchesOffset("[{'field':'salary','direction':'asc'}]");
+        assertKeysetMatchesOffset("[{'field':'salary','direction':'desc'}]");
+        assertKeysetMatchesOffset("[{'field':'name','direction':'desc'},{'field':'salary','direction':'asc'}]");
+        assertKeysetMatchesOffset("[{'field':'department.name','direction':'asc'},{'field':'joiningDate','direction':'desc'}]");
+        assertKeysetMatchesOffset("[{'field':'active','direction':'desc'},{'field':'name','direction':'asc'}]");
+    }
+
+    @Test
+    void seeksPastNullsInDistinctRows() throws IOException {
+        String request = "{'entity':'Employee','fields':['department.name','active'],'distinct':true,"
+                + "'sorts':[{'field':'department.name','direction':'desc'},{'field':'active','direction':'asc'}],'size':%d}";
+        List<JsonNode> expected = pages(request, 1000, false);
+        assertThat(expected).hasSizeGreaterThan(4).anyMatch(row -> row.get("department.name").isNull());
+        assertThat(pages(request, 2, true)).isEqualTo(expected);
+    }
+
+    /** The id sorts last, as the tie-breaker keyset mode appends, so both orders are total. */
+    private void assertKeysetMatchesOffset(String sorts) throws IOException {
+        String request = "{'entity':'Employee','fields':['id','name','salary','joiningDate','active','department.name'],"
+                + "'sorts':" + sorts.replace("]", ",{'field':'id','direction':'asc'}]") + ",'size':%d}";
+        List<JsonNode> expected = pages(request, 1000, false);
+        assertThat(expected).as(sorts).hasSize((int) employees.count());
+        assertThat(pages(request, 5, true)).as(sorts).isEqualTo(expected);
+    }
+
+    private List<JsonNode> pages(String json, int size, boolean keyset) throws IOException {
+        List<JsonNode> rows = new ArrayList<>();
+        String cursor = null;
+        do {
+            GenericRequest request = objectMapper.readValue(String.format(json, size).replace('\'', '"'), GenericRequest.class);
+            if (keyset) {
+                request.setPagination("keyset");
+                request.setCursor(cursor);
+            }
+            JsonNode page = objectMapper.valueToTree(queries.fetchData(request));
+            page.get("content").forEach(rows::add);
+            cursor = keyset && page.get("hasNext").asBoolean() ? page.get("nextCursor").asText() : null;
+        } while (cursor != null);
+        return rows;
+    }
+}
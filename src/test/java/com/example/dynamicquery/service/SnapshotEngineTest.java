@@ -0,0 +1,166 @@
+package com.example.dynamicquery.service;
+
+import com.example.dynamicquery.dto.GenericRequest;
+import com.example.dynamicquery.model.Department;
+import com.example.dynamicquery.model.Employee;
+import com.example.dynamicquery.repository.DepartmentRepository;
+import com.example.dynamicquery.repository.EmployeeRepository;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs the same requests through the columnar snapshot and through JPA and
+ * expects identical responses. explain=true requests skip the snapshot (and the
+ * result cache), so they give the JPA answer to compare with.
+ */
+@SpringBootTest(properties = "dynamic.snapshot.entities=Employee,Department")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class SnapshotEngineTest {
+
+    @Autowired
+    private GenericQueryService queries;
+
+    @Autowired
+    private SnapshotEngine snapshots;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private EmployeeRepository employees;
+
+    @Autowired
+    private DepartmentRepository departments;
+
+    private Employee renamed;
+
+    /** Rows with nulls and LIKE wildcards, written after the snapshot loaded: they arrive through the incremental refresh. */
+    @BeforeAll
+    void addEdgeRows() {
+        Department wild = departments.save(new Department("R&D_100%"));
+        renamed = employees.save(new Employee("Zed", 50000.0, LocalDate.of(2020, 1, 1), wild, true));
+        employees.saveAll(Arrays.asList(
+                new Employee("100% sure_x", null, LocalDate.of(2021, 5, 5), wild, true),
+                new Employee(null, 61000.0, null, null, null),
+                new Employee("Nobody", null, LocalDate.of(2019, 2, 2), null, false),
+                new Employee("back\\slash", 61000.0, LocalDate.of(2022, 3, 3), wild, false)));
+    }
+
+    @Test
+    void nullsSortFirstAscendingAndLastDescending() throws IOException {
+        assertSameAsJpa("{'entity':'Employee','fields':['id','name','salary'],'sort':'salary','size':10}");
+        assertSameAsJpa("{'entity':'Employee','fields':['id','name','salary'],"
+                + "'sorts':[{'field':'salary','direction':'desc'},{'field':'id','direction':'asc'}],'page':50,'size':10}");
+        assertSameAsJpa("{'entity':'Employee','fields':['id','name','department.name'],"
+                + "'sorts':[{'field':'department.name','direction':'asc'},{'field':'name','direction':'desc'}],'size':10}");
+        assertSameAsJpa("{'entity':'Employee','fields':['id','joiningDate','active'],"
+                + "'sorts':[{'field':'active','direction':'desc'},{'field':'joiningDate','direction':'asc'}],'page':50,'size':10}");
+    }
+
+    @Test
+    void likeMatchesLiterallyOrFallsBackOnWildcards() throws IOException {
+        assertSameAsJpa("{'entity':'Employee','fields':['id','name'],'filters':{'name_like':'JOHN 1'},'sort':'id'}");
+        assertSameAsJpa("{'entity':'Employee','fields':['id','name'],'filters':{'department.name_like':'r&d'},'sort':'id'}");
+        // % _ and \ keep their LIKE meaning, which only the database applies
+        assertJpaOnly("{'entity':'Employee','fields':['id','name'],'filters':{'name_like':'100%'},'sort':'id'}");
+        assertJpaOnly("{'entity':'Employee','fields':['id','name'],'filters':{'name_like':'e_1'},'sort':'id'}");
+        assertJpaOnly("{'entity':'Employee','fields':['id','name'],'filters':{'name_like':'back\\\\\\\\'},'sort':'id'}");
+    }
+
+    @Test
+    void distinctTotalsCountDistinctRows() throws IOException {
+        assertSameAsJpa("{'entity':'Employee','fields':['department.name'],'distinct':true,'sort':'department.name','size':2}");
+        assertSameAsJpa("{'entity':'Employee','fields':['active'],'distinct':true,'sort':'active,desc'}");
+        assertSameAsJpa("{'entity':'Employee','fields':['salary'],'distinct':true,"
+                + "'filters':{'salary_between':[60000,62000]},'sort':'salary','size':5,'page':1}");
+        assertSameAsJpa("{'entity':'Employee','fields':['active','department.id'],'distinct':true,'countMode':'none',"
+                + "'sorts':[{'field':'active','direction':'asc'},{'field':'department.id','direction':'desc'}],'size':4,'page':1}");
+    }
+
+    @Test
+    void aggregatesKeepTheirTypes() throws IOException {
+        String aggregates = "'aggregates':[{'function':'count'},{'function':'count','field':'salary'},"
+                + "{'function':'sum','field':'salary'},{'function':'avg','field':'salary'},"
+                + "{'function':'min','field':'joiningDate'},{'function':'max','field':'salary'},"
+                + "{'function':'countDistinct','field':'active'}]";
+        assertSameAsJpa("{'entity':'Employee','groupBy':['department.name']," + aggregates + ",'sort':'department.name'}");
+        assertSameAsJpa("{'entity':'Employee','groupBy':['active','department.id']," + aggregates
+                + ",'sorts':[{'field':'count','direction':'desc'},{'field':'active','direction':'asc'},"
+                + "{'field':'department.id','direction':'asc'}],'size':3}");
+        assertSameAsJpa("{'entity':'Employee'," + aggregates + ",'filters':{'active':true}}");
+        assertSameAsJpa("{'entity':'Employee'," + aggregates + ",'filters':{'name_like':'no such name'}}");
+    }
+
+    @Test
+    void leavesStringRangesAndAggregatesToJpa() throws IOException {
+        assertJpaOnly("{'entity':'Employee','fields':['id','name'],'filters':{'name_between':['A','K']},'sort':'id'}");
+        assertJpaOnly("{'entity':'Employee','groupBy':['active'],'aggregates':[{'function':'max','field':'name'}],'sort':'active'}");
+    }
+
+    @Test
+    void followsWritesThroughTheIncrementalRefresh() throws IOException {
+        String byDepartment = "{'entity':'Employee','fields':['id','name','salary','department.name'],"
+                + "'filters':{'department.name_like':'r&d'},'sort':'id'}";
+        assertSameAsJpa(byDepartment);
+
+        renamed.setSalary(null);
+        renamed.setName("Zed Renamed");
+        renamed = employees.save(renamed);
+        Department wild = departments.findAll().stream()
+                .filter(d -> d.getName().startsWith("R&D")).findFirst().orElseThrow(IllegalStateException::new);
+        wild.setName("R&D moved");    // every employee row pointing at it changes too
+        departments.save(wild);
+
+        JsonNode after = assertSameAsJpa(byDepartment);
+        assertThat(after.get("totalElements").asInt()).isEqualTo(3);
+        assertThat(after.get("content").findValuesAsText("department.name")).containsOnly("R&D moved");
+        assertSameAsJpa("{'entity':'Employee','fields':['id','name','salary'],'filters':{'name':'Zed Renamed'}}");
+
+        employees.delete(renamed);
+        JsonNode deleted = assertSameAsJpa(byDepartment);
+        assertThat(deleted.get("totalElements").asInt()).isEqualTo(2);
+    }
+
+    /** {@code json} (single quotes allowed) answered by the snapshot, and the same answer from JPA. */
+    private JsonNode assertSameAsJpa(String json) throws IOException {
+        long answered = answered();
+        JsonNode fromSnapshot = response(json, false);
+        assertThat(answered()).as("answered from the snapshot: %s", json).isEqualTo(answered + 1);
+        assertThat(fromSnapshot).as(json).isEqualTo(response(json, true));
+        return fromSnapshot;
+    }
+
+    /** Requests the snapshot hands to JPA, which must still answer them the same way. */
+    private void assertJpaOnly(String json) throws IOException {
+        long answered = answered();
+        JsonNode response = response(json, false);
+        assertThat(answered()).as("left to JPA: %s", json).isEqualTo(answered);
+        assertThat(response).as(json).isEqualTo(response(json, true));
+    }
+
+    private JsonNode response(String json, boolean explain) throws IOException {
+        GenericRequest request = objectMapper.readValue(json.replace('\'', '"'), GenericRequest.class);
+        request.setExplain(explain);
+        Map<String, Object> resp = new HashMap<>(queries.fetchData(request));
+        resp.remove("explain");
+        resp.remove("source");      // "snapshot" on snapshot answers
+        return objectMapper.readTree(objectMapper.writeValueAsString(resp));
+    }
+
+    private long answered() {
+        return (Long) snapshots.stats().get("answered");
+    }
+}